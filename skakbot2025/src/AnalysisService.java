@@ -0,0 +1,284 @@
+import Board.BitboardBoard;
+import Search.SearchStatistics;
+import Search.TimeManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AnalysisService {
+
+    // A local HTTP server that analyses lots of positions at once, for tools that want evaluations in bulk.
+    // A ChessAI keeps its search state in its own fields and can only search one position at a time, so the searches run on a fixed
+    // pool of worker threads, each with its own ChessAI (and so its own TT, -Dskakbot.hash MB apiece), like MatchRunner's games.
+    // The HTTP side runs on virtual threads: a request just parks while its jobs wait in the pool's queue,
+    // so thousands of open requests cost next to nothing, and only the workers ever burn a core.
+    // Jobs beyond what the queue allows are turned away with a 503 straight away, rather than waiting for minutes.
+    //
+    // Only listens on the loopback address; there's no authentication, and a search is easy to ask for and expensive to do.
+    //
+    // GET  /analyse?fen=...&ms=1000&nodes=500000&lines=1   one position, answered with a JSON object
+    // POST /analyse?ms=...&nodes=...&lines=...             one FEN per line in the body, answered with a JSON array, in the same order
+    // GET  /metrics                                        throughput and latency so far
+    // ms is the time budget per position (DEFAULT_MS, at most MAX_MS), nodes an optional node budget on top of it,
+    // and lines the number of best moves to return (multi-PV). Scores are from white's point of view, like everywhere else.
+
+    // Usage: AnalysisService [port] [workers]
+    // -Dskakbot.maxQueuedJobs=N sets how many jobs can wait for an engine (16 per worker by default).
+
+    private static final int DEFAULT_PORT = 8088;
+    private static final long DEFAULT_MS = 1000;
+    private static final long MAX_MS = 60_000;
+    private static final int MAX_LINES = 10;
+    private static final int LATENCY_WINDOW = 10_000; // The percentiles are over the last this many jobs.
+    private static final long METRICS_INTERVAL_S = 10;
+
+    private final ExecutorService searchThreads;
+    private final ThreadLocal<ChessAI> engines = ThreadLocal.withInitial(ChessAI::new);
+    private final Semaphore admission; // One permit per job that's searching or waiting to.
+    private final ExecutorService requestThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private final int workers;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalNodes = new AtomicLong();
+    private final long[] latencies = new long[LATENCY_WINDOW]; // Nanoseconds from arrival to answer, a ring buffer.
+    private final long[] queueTimes = new long[LATENCY_WINDOW]; // The part of that spent waiting for an engine.
+    private int latencyCount;
+
+    private record Job(String fen, long[] position, int halfmoveClock, long ms, long nodes, int lines) {}
+
+    private record Result(Job job, List<ChessAI.PvLine> lines, long nodes, int depth, long searchNanos, long queueNanos) {}
+
+    public AnalysisService(int workers, int maxQueued) {
+        this.workers = workers;
+        ChessAI.ensureLookupTables();
+        searchThreads = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread t = new Thread(runnable, "analysis-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        admission = new Semaphore(workers + maxQueued);
+    }
+
+    public void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestThreads);
+        server.createContext("/analyse", this::handleAnalyse);
+        server.createContext("/metrics", exchange -> send(exchange, 200, metricsJson()));
+        server.start();
+
+        Thread.ofPlatform().daemon().name("analysis-metrics").start(() -> {
+            long lastJobs = 0;
+            while (true) {
+                try {
+                    Thread.sleep(METRICS_INTERVAL_S * 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (jobs.get() != lastJobs) System.out.println(metricsJson());
+                lastJobs = jobs.get();
+            }
+        });
+        System.out.println("Analysis service on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                + "/analyse, " + workers + " workers, " + (admission.availablePermits() - workers) + " queued jobs at most");
+    }
+
+    // ###########################################################################
+    // REQUESTS.
+
+    private void handleAnalyse(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            long ms = Math.min(MAX_MS, Long.parseLong(params.getOrDefault("ms", String.valueOf(DEFAULT_MS))));
+            long nodes = Long.parseLong(params.getOrDefault("nodes", String.valueOf(Long.MAX_VALUE)));
+            int lines = Math.min(MAX_LINES, Integer.parseInt(params.getOrDefault("lines", "1")));
+            if (ms <= 0 || nodes <= 0 || lines <= 0) throw new IllegalArgumentException("ms, nodes and lines have to be positive");
+
+            boolean batch = exchange.getRequestMethod().equals("POST");
+            List<String> fens = new ArrayList<>();
+            if (batch) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                for (String line : body.split("\n")) {
+                    if (!line.isBlank()) fens.add(line.trim());
+                }
+            } else if (params.containsKey("fen")) {
+                fens.add(params.get("fen"));
+            } else {
+                throw new IllegalArgumentException("No fen given");
+            }
+
+            List<Job> batchJobs = new ArrayList<>();
+            for (String fen : fens) batchJobs.add(new Job(fen, parsePosition(fen), BitboardBoard.fenHalfmoveClock(fen), ms, nodes, lines));
+            // All or nothing, so a batch is never answered with holes in it.
+            if (!admission.tryAcquire(batchJobs.size())) {
+                rejected.addAndGet(batchJobs.size());
+                send(exchange, 503, "{\"error\": \"Too many jobs queued, try again later\"}");
+                return;
+            }
+
+            List<Future<Result>> futures = new ArrayList<>();
+            long arrived = System.nanoTime();
+            for (Job job : batchJobs) futures.add(searchThreads.submit(() -> run(job, arrived)));
+            StringBuilder json = new StringBuilder(batch ? "[" : "");
+            for (int i = 0; i < futures.size(); i++) {
+                if (i > 0) json.append(", ");
+                json.append(resultJson(futures.get(i).get()));
+            }
+            if (batch) json.append(']');
+            send(exchange, 200, json.toString());
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, "{\"error\": " + quote(e.getMessage()) + "}");
+        } catch (Exception e) {
+            send(exchange, 500, "{\"error\": " + quote(String.valueOf(e)) + "}");
+        }
+    }
+
+    // On a search worker. The admission permit is already held.
+    private Result run(Job job, long arrived) {
+        ChessAI engine = engines.get();
+        long queueNanos = System.nanoTime() - arrived;
+        busyWorkers.incrementAndGet();
+        try {
+            TimeManager timeManager = TimeManager.fixed(job.ms * 1_000_000L).withNodeLimit(job.nodes);
+            List<ChessAI.PvLine> lines = engine.analyse(job.position, new long[0], job.halfmoveClock, job.lines, timeManager, null);
+            SearchStatistics stats = engine.getStatistics();
+            Result result = new Result(job, lines, stats.getTotalNodes(), engine.getLastSearchDepth(), stats.getSearchNanos(), queueNanos);
+            record(result, System.nanoTime() - arrived);
+            return result;
+        } finally {
+            busyWorkers.decrementAndGet();
+            admission.release();
+        }
+    }
+
+    // FENStringToBitboard() takes nearly anything; a position without exactly one king a side would send the search off the rails.
+    private static long[] parsePosition(String fen) {
+        String[] fields = fen.trim().split("\\s+");
+        if (fields[0].split("/").length != 8) throw new IllegalArgumentException("Not a FEN: " + fen);
+        long[] board = BitboardBoard.FENStringToBitboard(fen);
+        if (Long.bitCount(board[8]) != 1 || Long.bitCount(board[14]) != 1) {
+            throw new IllegalArgumentException("Not a position with one king a side: " + fen);
+        }
+        return board;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq == -1) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // ###########################################################################
+    // JSON. Hand-written, since it's only ever flat objects of numbers and strings.
+
+    private static String resultJson(Result result) {
+        StringBuilder json = new StringBuilder("{\"fen\": ").append(quote(result.job.fen));
+        ChessAI.PvLine best = result.lines.isEmpty() ? null : result.lines.get(0);
+        json.append(", \"bestmove\": ").append(best == null ? "null" : quote(BitboardBoard.moveToString(best.move())));
+        json.append(", \"score\": ").append(best == null ? "null" : String.valueOf(best.score()));
+        json.append(", \"depth\": ").append(result.depth);
+        json.append(", \"nodes\": ").append(result.nodes);
+        json.append(", \"searchMs\": ").append(result.searchNanos / 1_000_000);
+        json.append(", \"queueMs\": ").append(result.queueNanos / 1_000_000);
+        json.append(", \"lines\": [");
+        for (int i = 0; i < result.lines.size(); i++) {
+            ChessAI.PvLine line = result.lines.get(i);
+            if (i > 0) json.append(", ");
+            json.append("{\"score\": ").append(line.score()).append(", \"pv\": [");
+            for (int j = 0; j < line.pv().length; j++) {
+                if (j > 0) json.append(", ");
+                json.append(quote(BitboardBoard.moveToString(line.pv()[j])));
+            }
+            json.append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    // ###########################################################################
+    // METRICS.
+
+    private synchronized void record(Result result, long latencyNanos) {
+        jobs.incrementAndGet();
+        totalNodes.addAndGet(result.nodes);
+        latencies[latencyCount % LATENCY_WINDOW] = latencyNanos;
+        queueTimes[latencyCount % LATENCY_WINDOW] = result.queueNanos;
+        latencyCount++;
+    }
+
+    private synchronized String metricsJson() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        int n = Math.min(latencyCount, LATENCY_WINDOW);
+        long[] sortedLatencies = Arrays.copyOf(latencies, n);
+        long[] sortedQueueTimes = Arrays.copyOf(queueTimes, n);
+        Arrays.sort(sortedLatencies);
+        Arrays.sort(sortedQueueTimes);
+        return String.format(Locale.ROOT,
+                "{\"jobs\": %d, \"rejected\": %d, \"busyWorkers\": %d, \"jobsPerSecond\": %.2f, \"nodesPerSecond\": %d, "
+                        + "\"latencyMs\": {\"p50\": %.1f, \"p99\": %.1f, \"max\": %.1f}, \"queueMs\": {\"p50\": %.1f, \"p99\": %.1f}}",
+                jobs.get(), rejected.get(), busyWorkers.get(), jobs.get() / seconds, (long) (totalNodes.get() / seconds),
+                percentile(sortedLatencies, 0.50), percentile(sortedLatencies, 0.99), percentile(sortedLatencies, 1.0),
+                percentile(sortedQueueTimes, 0.50), percentile(sortedQueueTimes, 0.99));
+    }
+
+    // In milliseconds, from sorted nanoseconds; nearest rank.
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        int rank = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2) {
+            System.out.println("Usage: AnalysisService [port] [workers]");
+            return;
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int maxQueued = Integer.getInteger("skakbot.maxQueuedJobs", workers * 16);
+        new AnalysisService(workers, maxQueued).start(port);
+    }
+}
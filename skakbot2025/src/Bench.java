@@ -0,0 +1,74 @@
+import Board.BitboardBoard;
+import Search.TimeManager;
+import Tablebase.Tablebases;
+
+public class Bench {
+
+    // Searches a fixed list of positions to a fixed depth (or a fixed number of nodes each) and prints the total node count.
+    // There's no clock involved and the TT is cleared before every position, so the node count only changes when the search or
+    // the evaluation does: the same commit gives the same number on any machine, every time. Put it in the commit message,
+    // and 'which commit changed the search?' becomes a matter of running this on both sides of the bisect.
+    // The nodes per second are the speed half of it, and do depend on the machine.
+    //
+    // Needs the single-threaded search (YoungBrothersSearch's threads race each other, so its node counts never repeat),
+    // and the same tablebase files, evaluator and weights (-Dskakbot.eval) on both sides of a comparison.
+    // Usage: Bench [depth <plies> | nodes <per position>]
+    // Also runs as 'ChessGUI bench ...'.
+
+    private static final int DEFAULT_DEPTH = 5;
+
+    // Openings, middlegames and endgames, so every part of the search gets some work.
+    private static final String[] POSITIONS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r1bqkbnr/pppp1ppp/2n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R b KQkq - 3 3",
+            "rnbqkb1r/pp2pppp/3p1n2/8/3NP3/8/PPP2PPP/RNBQKB1R w KQkq - 1 5",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+            "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+            "2rq1rk1/pp1bppbp/3p1np1/4n3/3NP3/1BN1BP2/PPPQ2PP/2KR3R w - - 7 12",
+            "r1b2rk1/2q1b1pp/p2ppn2/1p6/3QP3/1BN1B3/PPP3PP/R4RK1 w - - 0 15",
+            "6k1/5pp1/4p2p/3pP3/1r1P4/5P2/R5PP/6K1 w - - 0 35",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "8/8/4kpp1/3p1b2/p6P/2B5/6P1/6K1 b - - 0 47",
+            "8/5k2/8/3KP3/8/8/8/8 w - - 0 1",
+            "2r3k1/1q3ppp/p3p3/1p1nP3/3P4/P2Q1N2/1P3PPP/2R3K1 b - - 0 25"
+    };
+
+    public static void main(String[] args) {
+        if (args.length == 1 || args.length > 2 || (args.length == 2 && !args[0].equals("depth") && !args[0].equals("nodes"))) {
+            System.out.println("Usage: Bench [depth <plies> | nodes <per position>]");
+            return;
+        }
+        if (Integer.getInteger("skakbot.threads", 1) > 1) {
+            System.out.println("Bench needs the single-threaded search for repeatable node counts; run it without -Dskakbot.threads");
+            return;
+        }
+        boolean byNodes = args.length == 2 && args[0].equals("nodes");
+        long limit = args.length == 2 ? Long.parseLong(args[1]) : DEFAULT_DEPTH;
+
+        ChessAI.ensureLookupTables(); // Not part of the time; the first position would look slow.
+        Tablebases.ensureLoaded();
+        ChessAI ai = new ChessAI();
+        long totalNodes = 0, totalNanos = 0;
+        for (int i = 0; i < POSITIONS.length; i++) {
+            long[] board = BitboardBoard.FENStringToBitboard(POSITIONS[i]);
+            ai.clearHash(); // Whatever the last position left in the TT would change this one's node count.
+            TimeManager limits = byNodes ? TimeManager.unlimited().withNodeLimit(limit) : TimeManager.unlimited().withDepthLimit((int) limit);
+
+            long start = System.nanoTime();
+            int move = ai.findBestMove(board, limits);
+            long nanos = System.nanoTime() - start;
+            long nodes = ai.getStatistics().getTotalNodes();
+            totalNodes += nodes;
+            totalNanos += nanos;
+            System.out.printf("Position %2d/%d: %s, depth %d, %,d nodes, %d ms%n", i + 1, POSITIONS.length,
+                    move == -1 ? "no move" : BitboardBoard.moveToString(move), ai.getLastSearchDepth(), nodes, nanos / 1_000_000);
+        }
+
+        System.out.println("===========================");
+        System.out.printf("Total time (ms) : %d%n", totalNanos / 1_000_000);
+        System.out.printf("Nodes searched  : %d%n", totalNodes);
+        System.out.printf("Nodes/second    : %d%n", totalNodes * 1_000_000_000L / Math.max(1, totalNanos));
+    }
+}
@@ -0,0 +1,21 @@
+package BitboardMoveGen;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight Recorder event for building the sliding-piece lookup tables (magic number search included).
+// It takes a few seconds and happens when the move generator is first touched, so it's worth seeing where it lands in a recording.
+@Name("skakbot.LookupTableInit")
+@Label("Lookup Table Initialisation")
+@Category({"Skakbot", "Move Generation"})
+@Description("Generating the magic bitboard lookup tables for bishops and rooks")
+public class LookupTableInitEvent extends Event {
+    @Label("Bishop Entries")
+    public int bishopEntries;
+
+    @Label("Rook Entries")
+    public int rookEntries;
+}
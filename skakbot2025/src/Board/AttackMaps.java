@@ -0,0 +1,63 @@
+package Board;
+
+import java.util.Arrays;
+
+public class AttackMaps {
+
+    // The attack maps of the positions along the current search path, one set per ply, so that everything at a node that wants to know
+    // what's attacked shares one computation: the check test, castling in the move generator, and the evaluation's mobility.
+    // A colour's maps are only worked out the first time someone asks for them at that ply, and the search calls invalidate()
+    // on the child's ply whenever it makes a move. The buffers are allocated once up front, so none of this allocates.
+    //
+    // The layout per colour is BitboardBoard.getAllAttacks()'s: [0] everything, [1..6] pawns to king, and [THREATS] the attacked squares.
+
+    public static final int THREATS = 7;
+    public static final int LENGTH = 8;
+
+    private final long[][] white, black;
+    private final boolean[] whiteValid, blackValid;
+
+    public AttackMaps(int plies) {
+        white = new long[plies][LENGTH];
+        black = new long[plies][LENGTH];
+        whiteValid = new boolean[plies];
+        blackValid = new boolean[plies];
+    }
+
+    // The maps of the given colour in the position at this ply; board has to be that position.
+    public long[] get(int ply, long[] board, boolean forWhite) {
+        if (forWhite) {
+            if (!whiteValid[ply]) {
+                BitboardBoard.fillAttacks(board, true, white[ply]);
+                whiteValid[ply] = true;
+            }
+            return white[ply];
+        }
+        if (!blackValid[ply]) {
+            BitboardBoard.fillAttacks(board, false, black[ply]);
+            blackValid[ply] = true;
+        }
+        return black[ply];
+    }
+
+    public long threats(int ply, long[] board, boolean byWhite) {
+        return get(ply, board, byWhite)[THREATS];
+    }
+
+    // Is the given side in check? Not if its king is gone, which the pseudo-legal moves inside the tree do allow.
+    public boolean inCheck(int ply, long[] board, boolean white) {
+        long king = board[white ? 8 : 14];
+        return king != 0L && (threats(ply, board, !white) & king) != 0L;
+    }
+
+    // The position at this ply has changed.
+    public void invalidate(int ply) {
+        whiteValid[ply] = false;
+        blackValid[ply] = false;
+    }
+
+    public void clear() {
+        Arrays.fill(whiteValid, false);
+        Arrays.fill(blackValid, false);
+    }
+}
@@ -1,7 +1,9 @@
 package Board;
 
+import BitboardMoveGen.LookupTableInitEvent;
 import Pieces.*;
 import java.util.Arrays;
+import java.util.Random;
 import static BitboardMoveGen.LookupTableGeneration.*;
 
 public class BitboardBoard {
@@ -16,12 +18,14 @@ public class BitboardBoard {
     // I think the way to do this is to have the board stored here be the 'canon' version that represents the actual game state.
     // Then we can have the temporary boards be local variables so they can be stored in the stack for speed, and static versions of the methods below can be used to access the lookup tables.
 
-    long[] board = new long[16];
+    public static final int BOARD_SIZE = 20;
+    long[] board = new long[BOARD_SIZE];
 
     // Board[0] is all pieces, Board[1] is white pieces, Board[2] is black pieces.
     // Board[3] to Board[8] are the white pieces in the order pawns, knights, bishops, rooks, queens, kings.
     // Board[9] to Board[14] are the black pieces, same order.
     // Board[15] stores miscellaneous data: castling rights, en passant square, player turn, move number, etc.
+    // Board[16] to Board[19] are the mailbox: what's on each square, 4 bits per square, 16 squares per long. See getSlice().
 
     // For generating all of these lookup tables, we just call the methods in LookupTableGeneration.java.
     // This code *would* have had a bunch of helpful comments, but I had to refactor everything twice, so we're going to need to talk Harrison Ford into doing another Indy sequel to find them.
@@ -44,6 +48,9 @@ public class BitboardBoard {
 
     // I'm not sure if this should just be part of the constructor; will we ever need to create multiple instances of this class?
     public void generateLookupTables() {
+        LookupTableInitEvent event = new LookupTableInitEvent();
+        event.begin();
+
         long[][] bishopBlockers = enumerateAllBlockerBitboards(bishopMasks);
         long[][] rookBlockers = enumerateAllBlockerBitboards(rookMasks);
 
@@ -73,7 +80,11 @@ public class BitboardBoard {
 
             bishopLookupTable[square] = bishopTable;
             rookLookupTable[square] = rookTable;
+            event.bishopEntries += bishopTable.length;
+            event.rookEntries += rookTable.length;
         }
+
+        event.commit();
     }
     // Again, remember that the LSB is A1, so the whole board is mirrored along the vertical axis.
     public void initialiseBoard() {
@@ -93,6 +104,7 @@ public class BitboardBoard {
         board[13] = 0x0800000000000000L; // Black queen.
         board[14] = 0x1000000000000000L; // Black king.
         board[15] = 0x000000000000001FL; // White to move, full castling rights, no en passant square.
+        rebuildMailbox(board);
     }
 
     public long getBoard(int index) {
@@ -107,13 +119,15 @@ public class BitboardBoard {
         board[index] = newValue;
     }
 
+    // Only the bitboards are taken from newBoard; the mailbox is rebuilt from them.
     public void setFullBoard(long[] newBoard) {
-        System.arraycopy(newBoard, 0, board, 0, board.length);
+        System.arraycopy(newBoard, 0, board, 0, 16);
+        rebuildMailbox(board);
     }
 
     // TODO: consider changing this and/or adding a version that takes a FEN string.
     public void manualSetBoard(long[] newBoard) {
-        System.arraycopy(newBoard, 0, board, 0, board.length);
+        setFullBoard(newBoard);
     }
 
     // #########################################################################
@@ -146,12 +160,14 @@ public static long blackPawnMoves(long[] board) {
     return moves;
 }
 
+    // Careful with the masks here: a white 'right' capture lands one file to the right, so it can never land on the a-file,
+    // and anything that does has wrapped around from the h-file. Same logic, mirrored, for the 'left' captures.
     public static long whitePawnRightCaptures(long[] board) {
-        return (board[3] << 9) & board[2] & 0x7F7F7F7F7F7F7F7FL;
+        return (board[3] << 9) & board[2] & 0xFEFEFEFEFEFEFEFEL;
     }
 
     public static long whitePawnLeftCaptures(long[] board){
-        return (board[3] << 7) & board[2] & 0xFEFEFEFEFEFEFEFEL;
+        return (board[3] << 7) & board[2] & 0x7F7F7F7F7F7F7F7FL;
     }
 
     public static long blackPawnRightCaptures(long[] board) {
@@ -166,14 +182,14 @@ public static long blackPawnMoves(long[] board) {
         long epSquare = getEnPassantSquare(board[15]);
         long epMask = 1L << epSquare;
 
-        return (board[3] << 9) & epMask & 0x7F7F7F7F7F7F7F7FL;
+        return (board[3] << 9) & epMask & 0xFEFEFEFEFEFEFEFEL;
     }
 
     public static long whitePawnLeftEnPassant(long[] board) {
         long epSquare = getEnPassantSquare(board[15]);
         long epMask = 1L << epSquare;
 
-        return (board[3] << 7) & epMask & 0xFEFEFEFEFEFEFEFEL;
+        return (board[3] << 7) & epMask & 0x7F7F7F7F7F7F7F7FL;
     }
 
     public static long blackPawnRightEnPassant(long[] board) {
@@ -327,15 +343,37 @@ public static long blackPawnMoves(long[] board) {
         int kingSquare = Long.numberOfTrailingZeros(board[white ? 8 : 14]);
 
         // Then we check from the king's square to all the squares that can attack it and see if any of them are occupied by an enemy piece.
-        // For obvious reasons, we don't need to check the enemy king's moves.
+        // The enemy king can't give check, but it does stop our king from walking next to it, so it has to be included for legality checks.
 
         // We check whether any pawn captures for the opposite colour overlap with the king's position, then whether any non-king piece in the king's position can see a corresponding piece of the opposite colour.
         return ((white ? blackPawnRightCaptures(board) : whitePawnRightCaptures(board)) & board[white ? 8 : 14]) != 0L ||
                 ((white ? blackPawnLeftCaptures(board) : whitePawnLeftCaptures(board)) & board[white ? 8 : 14]) != 0L ||
                 ((white ? whiteKnightCaptures(kingSquare, board) : blackKnightCaptures(kingSquare, board)) & board[white ? 10 : 4]) != 0L ||
                 ((white ? whiteBishopCaptures(kingSquare, board) : blackBishopCaptures(kingSquare, board)) & (board[white ? 11 : 5] | board[white ? 13 : 7])) != 0L ||
-                ((white ? whiteRookCaptures(kingSquare, board) : blackRookCaptures(kingSquare, board)) & (board[white ? 12 : 6] | board[white ? 13 : 7])) != 0L;
+                ((white ? whiteRookCaptures(kingSquare, board) : blackRookCaptures(kingSquare, board)) & (board[white ? 12 : 6] | board[white ? 13 : 7])) != 0L ||
+                (kingLookupTable[kingSquare] & board[white ? 14 : 8]) != 0L;
+
+    }
+
+    // Same idea as isInCheck(), for any square: look outwards from the square for pieces of the attacking colour.
+    public static boolean isSquareAttacked(long[] board, int square, boolean byWhite) {
+        long pawnAttackers;
+        if (byWhite) {
+            pawnAttackers = (square % 8 != 7 && square >= 7 ? 1L << (square - 7) : 0L) | (square % 8 != 0 && square >= 9 ? 1L << (square - 9) : 0L);
+        } else {
+            pawnAttackers = (square % 8 != 0 && square <= 56 ? 1L << (square + 7) : 0L) | (square % 8 != 7 && square <= 54 ? 1L << (square + 9) : 0L);
+        }
+        return (pawnAttackers & board[byWhite ? 3 : 9]) != 0L ||
+                (knightLookupTable[square] & board[byWhite ? 4 : 10]) != 0L ||
+                ((byWhite ? blackBishopCaptures(square, board) : whiteBishopCaptures(square, board)) & (board[byWhite ? 5 : 11] | board[byWhite ? 7 : 13])) != 0L ||
+                ((byWhite ? blackRookCaptures(square, board) : whiteRookCaptures(square, board)) & (board[byWhite ? 6 : 12] | board[byWhite ? 7 : 13])) != 0L ||
+                (kingLookupTable[square] & board[byWhite ? 8 : 14]) != 0L;
+    }
 
+    // The corners whose rooks can still castle, according to the castling rights in the misc data.
+    private static long castlingRookCorners(long miscData) {
+        return ((miscData & 2L) != 0L ? 1L << 7 : 0L) | ((miscData & 4L) != 0L ? 1L : 0L)
+                | ((miscData & 8L) != 0L ? 1L << 63 : 0L) | ((miscData & 16L) != 0L ? 1L << 56 : 0L);
     }
 
     // ##########################################################################
@@ -352,7 +390,7 @@ public static long blackPawnMoves(long[] board) {
     // 6 = king.
     public static int encodeMove(int from, int to, int piece, boolean white, int captured, int promotion, boolean isEP, boolean isCastle, boolean kingSideCastlingRightsChanged, boolean queenSideCastlingRightsChanged, int enPassantFile) {
         return (from) | (to << 6) | (piece << 12) | ((white ? 1 : 0) << 15) | (captured << 16) | (promotion << 20) | ((isEP ? 1 : 0) << 24) | ((isCastle ? 1 : 0) << 25) |
-                ((enPassantFile != -1 ? 1 : 0) << 26) | ((kingSideCastlingRightsChanged ? 1 : 0) << 27) | ((queenSideCastlingRightsChanged ? 1 : 0) << 28) | (enPassantFile << 29);
+                ((enPassantFile != -1 ? 1 : 0) << 26) | ((kingSideCastlingRightsChanged ? 1 : 0) << 27) | ((queenSideCastlingRightsChanged ? 1 : 0) << 28) | (enPassantFile != -1 ? enPassantFile << 29 : 0);
     }
 
     // Apparently these are efficient enough that there's no advantage to hardcoding the logic.
@@ -360,7 +398,8 @@ public static long blackPawnMoves(long[] board) {
     public static int getTo(int move)         { return (move >>> 6) & 0x3F; }  // Bits 6-11
     public static int getPiece(int move)      { return (move >>> 12) & 0x7; }  // Bits 12-14
     public static boolean isWhite(int move)     { return ((move >>> 15) & 1) != 0; }  // Bit 15
-    public static int getCaptured(int move)   { return (move >>> 16) & 0xF; }  // Bits 16-19
+    public static int getCaptured(int move)   { return (move >>> 16) & 0x7; }  // Bits 16-18
+    public static boolean capturedCastlingRook(int move) { return ((move >>> 19) & 1) != 0; } // Bit 19
     public static int getPromotion(int move)  { return (move >>> 20) & 0xF; }  // Bits 20-23
     public static boolean isEnPassant(int move) { return ((move >>> 24) & 1) != 0; }  // Bit 24
     public static boolean isCastling(int move)  { return ((move >>> 25) & 1) != 0; }  // Bit 25
@@ -375,6 +414,8 @@ public static long blackPawnMoves(long[] board) {
     // Bits 27-28 store castling rights changes, and we simply distinguish between KQ and kq based on whose turn it is.
     // Bit 26 stores whether the en passant square is set before the move is made.
     // If it is, bits 29-31 store the en passant file, and we again use the current player to determine which rank it's on.
+    // Capturing a rook on its starting corner takes away the *opponent's* castling right on that side, which bits 27-28 can't express.
+    // The captured piece only needs three bits, though, so bit 19 says 'this capture removed the right belonging to the target corner'.
 
     // Similarly, we can store a lot of miscellaneous data in board[15] instead of needing separate fields for it.
     // The data is stored as follows:
@@ -429,32 +470,54 @@ public static long blackPawnMoves(long[] board) {
     // ##########################################################################
     // VARIOUS METHODS FOR MAKING AND FINDING MOVES.
 
-    // Returns the type of piece at the given square.
-    public static int getPieceType(int square, long[] board, boolean white) {
-        long sqMask = 1L << square;
-
-        if (!white) {
-            if ((board[3] & sqMask) != 0L) return 1; // Pawn
-            if ((board[4] & sqMask) != 0L) return 2; // Knight
-            if ((board[5] & sqMask) != 0L) return 3; // Bishop
-            if ((board[6] & sqMask) != 0L) return 4; // Rook
-            if ((board[7] & sqMask) != 0L) return 5; // Queen
-            if ((board[8] & sqMask) != 0L) return 6; // King
-        } else {
-            if ((board[9] & sqMask) != 0L) return 1; // Pawn
-            if ((board[10] & sqMask) != 0L) return 2; // Knight
-            if ((board[11] & sqMask) != 0L) return 3; // Bishop
-            if ((board[12] & sqMask) != 0L) return 4; // Rook
-            if ((board[13] & sqMask) != 0L) return 5; // Queen
-            if ((board[14] & sqMask) != 0L) return 6; // King
+    // ##########################################################################
+    // MAILBOX.
+
+    // Asking the bitboards what's on a square means testing up to six of them, and the move generator does that for every capture.
+    // So the board also keeps a mailbox in board[16..19]: for each square, the index of the bitboard the piece is in (3-14),
+    // or 0 if it's empty. 4 bits per square, so 16 squares fit in a long, and the whole thing stays in the same long[] as the bitboards;
+    // a copy of the board is still just clone(), and makeOrUndoMove() can keep it up to date with XORs like everything else.
+
+    // The bitboard index of the piece on the square (3-8 white, 9-14 black), or 0 if it's empty.
+    public static int getSlice(long[] board, int square) {
+        return (int) (board[16 + (square >>> 4)] >>> ((square & 15) << 2)) & 0xF;
+    }
+
+    // XORs a piece in or out of the mailbox, the same way makeOrUndoMove() does the bitboards.
+    private static void toggleMailbox(long[] board, int square, int slice) {
+        board[16 + (square >>> 4)] ^= (long) slice << ((square & 15) << 2);
+    }
+
+    // Fills in the mailbox from the bitboards. Needed whenever a board is built by hand rather than with makeOrUndoMove().
+    public static void rebuildMailbox(long[] board) {
+        board[16] = board[17] = board[18] = board[19] = 0L;
+        for (int slice = 3; slice < 15; slice++) {
+            long pieces = board[slice];
+            while (pieces != 0L) {
+                toggleMailbox(board, Long.numberOfTrailingZeros(pieces), slice);
+                pieces &= pieces - 1;
+            }
         }
+    }
 
-        return 0;
+    // Returns the type of piece at the given square (1-6, pawn to king), if it belongs to the *opponent* of white; 0 otherwise.
+    public static int getPieceType(int square, long[] board, boolean white) {
+        int slice = getSlice(board, square);
+        if (white) return slice > 8 ? slice - 8 : 0;
+        return slice != 0 && slice <= 8 ? slice - 2 : 0;
     }
 
-    // For checking castling rights.
+    // Everything the given colour can move to or capture, per piece type: [0] all of it, [1..6] pawns to king,
+    // and [AttackMaps.THREATS] the squares it attacks. Allocates; the search goes through AttackMaps instead.
     public static long[] getAllAttacks(long[] board, boolean white) {
-        long[] attacks = new long[7];
+        long[] attacks = new long[AttackMaps.LENGTH];
+        fillAttacks(board, white, attacks);
+        return attacks;
+    }
+
+    // getAllAttacks() into an existing array, which gets overwritten.
+    public static void fillAttacks(long[] board, boolean white, long[] attacks) {
+        Arrays.fill(attacks, 0, AttackMaps.LENGTH, 0L);
 
         attacks[1] |= white ? whitePawnMoves(board) : blackPawnMoves(board);
         attacks[1] |= white ? whitePawnLeftCaptures(board) : blackPawnLeftCaptures(board);
@@ -494,15 +557,54 @@ public static long blackPawnMoves(long[] board) {
 
         attacks[0] = attacks[1] | attacks[2] | attacks[3] | attacks[4] | attacks[5] | attacks[6];
 
-        return attacks;
+        // The pawns' share of [0] is pushes and captures of actual pieces; what they attack is both diagonals, occupied or not.
+        // Some of the piece maps also take in squares of our own pieces, which nobody can move to, so those go.
+        attacks[AttackMaps.THREATS] = (pawnAttacks(board, white) | attacks[2] | attacks[3] | attacks[4] | attacks[5] | attacks[6]) & ~board[white ? 1 : 2];
+    }
+
+    // The squares the given colour attacks, other than those of its own pieces. Whatever stands there (or moves there) can be taken;
+    // so our king is in check if it's on one of the other side's, and can't castle through them.
+    // Same as getAllAttacks()[AttackMaps.THREATS], straight from the lookup tables and without allocating anything.
+    public static long getAttackedSquares(long[] board, boolean white) {
+        long attacked = pawnAttacks(board, white);
+        long knights = board[white ? 4 : 10];
+        while (knights != 0L) {
+            attacked |= knightLookupTable[Long.numberOfTrailingZeros(knights)];
+            knights &= knights - 1;
+        }
+        long diagonals = board[white ? 5 : 11] | board[white ? 7 : 13];
+        while (diagonals != 0L) {
+            int square = Long.numberOfTrailingZeros(diagonals);
+            attacked |= bishopLookupTable[square][(int)((board[0] & bishopMasks[square]) * bishopMagicNumbers[square] >>> bishopShifts[square])];
+            diagonals &= diagonals - 1;
+        }
+        long straights = board[white ? 6 : 12] | board[white ? 7 : 13];
+        while (straights != 0L) {
+            int square = Long.numberOfTrailingZeros(straights);
+            attacked |= rookLookupTable[square][(int)((board[0] & rookMasks[square]) * rookMagicNumbers[square] >>> rookShifts[square])];
+            straights &= straights - 1;
+        }
+        long king = board[white ? 8 : 14];
+        if (king != 0L) attacked |= kingLookupTable[Long.numberOfTrailingZeros(king)];
+        return attacked & ~board[white ? 1 : 2];
+    }
+
+    // Both diagonals in front of every pawn, with the same wrap-around masks as the captures.
+    private static long pawnAttacks(long[] board, boolean white) {
+        if (white) return ((board[3] << 9) & 0xFEFEFEFEFEFEFEFEL) | ((board[3] << 7) & 0x7F7F7F7F7F7F7F7FL);
+        return ((board[9] >> 9) & 0x7F7F7F7F7F7F7F7FL) | ((board[9] >> 7) & 0xFEFEFEFEFEFEFEFEL);
     }
 
     public static int[] getAllMoves(long[] board, boolean white) {
+        // Castling is the only thing in here that needs to know what the other side attacks, and only if we still have the rights.
+        return getAllMoves(board, white, (board[15] & (white ? 6L : 24L)) != 0L ? getAttackedSquares(board, !white) : 0L);
+    }
+
+    // For callers that already know what the other side attacks (getAttackedSquares(), or AttackMaps in the search).
+    public static int[] getAllMoves(long[] board, boolean white, long enemyAttacks) {
         // Setting a large size for the array so it won't run out of space.
         int[] moves = new int[256];
         int moveCount = 0;
-        long[] enemyAttacks = getAllAttacks(board, !white);
-        long allAttacks = enemyAttacks[0];
         boolean[] castlingRights = getCastlingRights(board[15]);
         int enPassantFile = getEnPassantSquare(board[15]) % 8; // Finds the file of the en passant square, which we can then encode into the moves.
 
@@ -514,7 +616,7 @@ public static long blackPawnMoves(long[] board) {
         while (pawnRightCaptures != 0L) {
             int targetSquare = Long.numberOfTrailingZeros(pawnRightCaptures);
             int originSquare = white ? targetSquare - 9 : targetSquare + 9;
-            if (white ? targetSquare < 55 : targetSquare > 8) {
+            if (white ? targetSquare < 56 : targetSquare > 7) {
                 moves[moveCount++] = encodeMove(originSquare, targetSquare, 1, white, getPieceType(targetSquare, board, white), 0, false, false, false, false, enPassantFile);
             } else {
                 for (int j = 2; j <= 5; j++) { // Promotion moves.
@@ -527,7 +629,7 @@ public static long blackPawnMoves(long[] board) {
         while (pawnLeftCaptures != 0L) {
             int targetSquare = Long.numberOfTrailingZeros(pawnLeftCaptures);
             int originSquare = white ? targetSquare - 7 : targetSquare + 7;
-            if (white ? targetSquare < 55 : targetSquare > 8) {
+            if (white ? targetSquare < 56 : targetSquare > 7) {
                 moves[moveCount++] = encodeMove(originSquare, targetSquare, 1,white, getPieceType(targetSquare, board, white), 0, false, false, false, false, enPassantFile);
             } else {
                 for (int j = 2; j <= 5; j++) { // Promotion moves.
@@ -621,10 +723,11 @@ public static long blackPawnMoves(long[] board) {
 
         // Castling moves.
 
+        // The rook has to actually be there, and the king can't start on, pass through or land on an attacked square.
         // Kingside.
-        if (white ? castlingRights[0] : castlingRights[2]) {
+        if ((white ? castlingRights[0] : castlingRights[2]) && (board[white ? 6 : 12] & (1L << (white ? 7 : 63))) != 0L) {
             boolean pathClear = ((board[0] & (white ? (1L << 5 | 1L << 6) : (1L << 61 | 1L << 62))) == 0L);
-            boolean safeSquares = ((allAttacks & (white ? (1L << 4 | 1L << 5 | 1L << 6) : (1L << 60 | 1L << 61 | 1L << 62))) == 0L);
+            boolean safeSquares = (enemyAttacks & (white ? (1L << 4 | 1L << 5 | 1L << 6) : (1L << 60 | 1L << 61 | 1L << 62))) == 0L;
 
             if (pathClear && safeSquares) {
                 moves[moveCount++] = encodeMove(white ? 4 : 60, white ? 6 : 62, 6, white, 0, 0, false, true, true, castlingRights[(white ? 1 : 3)], enPassantFile);
@@ -632,12 +735,12 @@ public static long blackPawnMoves(long[] board) {
         }
 
         // Queenside.
-        if (white ? castlingRights[1] : castlingRights[3]) {
+        if ((white ? castlingRights[1] : castlingRights[3]) && (board[white ? 6 : 12] & (1L << (white ? 0 : 56))) != 0L) {
             boolean pathClear = ((board[0] & (white ? (1L << 1 | 1L << 2 | 1L << 3) : (1L << 57 | 1L << 58 | 1L << 59))) == 0L);
-            boolean safeSquares = ((allAttacks & (white ? (1L << 2 | 1L << 3 | 1L << 4) : (1L << 58 | 1L << 59 | 1L << 60))) == 0L);
+            boolean safeSquares = (enemyAttacks & (white ? (1L << 4 | 1L << 3 | 1L << 2) : (1L << 60 | 1L << 59 | 1L << 58))) == 0L;
 
             if (pathClear && safeSquares) {
-                moves[moveCount++] = encodeMove(white ? 4 : 60, white ? 2 : 62, 6, white, 0, 0, false, true, castlingRights[(white ? 0 : 2)], true, enPassantFile);
+                moves[moveCount++] = encodeMove(white ? 4 : 60, white ? 2 : 58, 6, white, 0, 0, false, true, castlingRights[(white ? 0 : 2)], true, enPassantFile);
             }
         }
 
@@ -649,7 +752,7 @@ public static long blackPawnMoves(long[] board) {
             if (((white ? board[3] : board[9]) & 1L << originSquare) == 0L) {
                 originSquare = (white ? originSquare - 8 : originSquare + 8); // Double move.
             }
-            if (white ? targetSquare < 55 : targetSquare > 8) {
+            if (white ? targetSquare < 56 : targetSquare > 7) {
                 moves[moveCount++] = encodeMove(originSquare, targetSquare, 1, white, 0, 0, false, false, false, false, enPassantFile);
             } else {
                 for (int j = 2; j <= 5; j++) { // Promotion moves.
@@ -720,9 +823,30 @@ public static long blackPawnMoves(long[] board) {
             kingMoves &= kingMoves - 1;
         }
 
+        // Captures of the opponent's rooks on their starting corners take away the matching castling right (see bit 19 above).
+        long cornerRooks = (white ? board[12] : board[6]) & (white ? 0x8100000000000000L : 0x81L) & castlingRookCorners(board[15]);
+        if (cornerRooks != 0L) {
+            for (int i = 0; i < moveCount; i++) {
+                if (getCaptured(moves[i]) == 4 && (cornerRooks & (1L << getTo(moves[i]))) != 0L) moves[i] |= 1 << 19;
+            }
+        }
+
         return Arrays.copyOf(moves, moveCount);
     }
 
+    // getAllMoves() is pseudo-legal: it happily generates moves that leave the king in check.
+    // This filters those out, for when we need the actual list rather than letting the search sort it out.
+    public static int[] getLegalMoves(long[] board, boolean white) {
+        int[] moves = getAllMoves(board, white);
+        int count = 0;
+        for (int move : moves) {
+            makeOrUndoMove(board, move);
+            if (!isInCheck(board, white)) moves[count++] = move;
+            makeOrUndoMove(board, move);
+        }
+        return count == moves.length ? moves : Arrays.copyOf(moves, count);
+    }
+
     // ###########################################################################
     // METHODS FOR MAKING MOVES.
 
@@ -738,6 +862,7 @@ public static long blackPawnMoves(long[] board) {
     public static long[] makeOrUndoMove(long[] board, int move) {
         boolean white = isWhite(move);
         int tempEnPassantSquare = (isEnPassant(move) && getEnPassantSquare(board[15]) == -1) ? (enPassantFile(move) + (white ? 40 : 16)) : getEnPassantSquare(board[15]);
+        updateMailbox(board, move, tempEnPassantSquare);
         if (white) {
             board[1] ^= (1L << getFrom(move)) | (1L << getTo(move)); // Update the white pieces.
             board[getPiece(move)+2] ^= (1L << getFrom(move)) | (1L << getTo(move)); // Update the piece type.
@@ -827,11 +952,127 @@ public static long blackPawnMoves(long[] board) {
             board[15] ^= ((move & 0x18000000) >>> 24);
         }
 
+        if (capturedCastlingRook(move)) {
+            int to = getTo(move);
+            board[15] ^= to == 7 ? 2L : to == 0 ? 4L : to == 63 ? 8L : 16L; // WK, WQ, BK, BQ.
+        }
+
         board[15] ^= 1L; // Pass the turn to the other player. Probably marginally more efficient than using a method to do it, and very easy to hardcode.
 
         return board;
     }
 
+    // The mailbox half of makeOrUndoMove(). Every change is an XOR, so it undoes itself too.
+    private static void updateMailbox(long[] board, int move, int enPassantSquare) {
+        boolean white = isWhite(move);
+        int own = white ? 2 : 8, opponent = white ? 8 : 2;
+        int from = getFrom(move), to = getTo(move);
+        int moved = own + getPiece(move);
+
+        toggleMailbox(board, from, moved);
+        toggleMailbox(board, to, getPromotion(move) != 0 ? own + getPromotion(move) : moved);
+        if (getCaptured(move) != 0) {
+            if (isEnPassant(move)) toggleMailbox(board, enPassantSquare + (white ? -8 : 8), opponent + 1);
+            else                   toggleMailbox(board, to, opponent + getCaptured(move));
+        }
+        if (isCastling(move)) {
+            int rookFrom = to > from ? to + 1 : to - 2, rookTo = to > from ? to - 1 : to + 1;
+            toggleMailbox(board, rookFrom, own + 4);
+            toggleMailbox(board, rookTo, own + 4);
+        }
+    }
+
+    // ############################################################################
+    // 16-BIT MOVES.
+
+    // The 32-bit moves above carry everything needed to undo them, which is what lets makeOrUndoMove() be one method.
+    // The price is that the same move looks different depending on the position (captured piece, castling and en passant bits),
+    // and it takes twice the space in the TT. So there's also a compact form that only says what the move *is*:
+    // bits 0-5 from, bits 6-11 to, bits 12-15 flags. Everything else comes from the board (the mailbox) when the move is made,
+    // and whatever is lost by making it goes into an UndoStack.
+    public static final int FLAG_NORMAL = 0;
+    public static final int FLAG_CASTLE = 1;
+    public static final int FLAG_EN_PASSANT = 2;
+    public static final int FLAG_PROMOTION = 4; // 4-7: promotion to knight, bishop, rook, queen (promotion piece + 2).
+
+    // Castling rights (bits 1-4 of board[15]) that survive a move touching each square: moving the king or a rook, or capturing a rook.
+    private static final long[] CASTLING_KEPT = new long[64];
+    static {
+        Arrays.fill(CASTLING_KEPT, ~0L);
+        CASTLING_KEPT[4] = ~(2L | 4L);
+        CASTLING_KEPT[7] = ~2L;
+        CASTLING_KEPT[0] = ~4L;
+        CASTLING_KEPT[60] = ~(8L | 16L);
+        CASTLING_KEPT[63] = ~8L;
+        CASTLING_KEPT[56] = ~16L;
+    }
+
+    public static int toCompactMove(int move) {
+        int flag = isCastling(move) ? FLAG_CASTLE : isEnPassant(move) ? FLAG_EN_PASSANT : getPromotion(move) != 0 ? getPromotion(move) + 2 : FLAG_NORMAL;
+        return (move & 0xFFF) | (flag << 12);
+    }
+
+    // Makes a compact move, recording what it destroys (and the caller's hash) in undo.
+    public static void makeMove(long[] board, int move, long hash, UndoStack undo) {
+        int to = (move >>> 6) & 0x3F;
+        boolean white = isWhiteToMove(board[15]);
+        int capturedSquare = move >>> 12 == FLAG_EN_PASSANT ? to + (white ? -8 : 8) : to;
+        undo.push(board[15], getSlice(board, capturedSquare), hash);
+        applyMove(board, move);
+    }
+
+    // The forward half of makeMove(), without saving anything to take it back. PositionStack uses it on a copy of the board.
+    public static void applyMove(long[] board, int move) {
+        int from = move & 0x3F, to = (move >>> 6) & 0x3F, flag = move >>> 12;
+        int slice = getSlice(board, from);
+        boolean white = slice <= 8;
+        int capturedSquare = flag == FLAG_EN_PASSANT ? to + (white ? -8 : 8) : to;
+        int captured = getSlice(board, capturedSquare);
+
+        if (captured != 0) togglePiece(board, capturedSquare, captured);
+        togglePiece(board, from, slice);
+        togglePiece(board, to, flag >= FLAG_PROMOTION ? (white ? 2 : 8) + flag - 2 : slice);
+        if (flag == FLAG_CASTLE) toggleCastlingRook(board, to, white);
+
+        long misc = board[15] & CASTLING_KEPT[from] & CASTLING_KEPT[to];
+        boolean doublePush = (slice == 3 || slice == 9) && Math.abs(to - from) == 16;
+        board[15] = setEnPassantSquare(misc, doublePush ? (from + to) / 2 : -1) ^ 1L;
+    }
+
+    // Takes back the compact move on top of undo, and returns the hash that was passed to makeMove().
+    public static long unmakeMove(long[] board, int move, UndoStack undo) {
+        int from = move & 0x3F, to = (move >>> 6) & 0x3F, flag = move >>> 12;
+        undo.pop();
+        long misc = undo.misc();
+        boolean white = isWhiteToMove(misc);
+        int slice = getSlice(board, to);
+
+        if (flag == FLAG_CASTLE) toggleCastlingRook(board, to, white);
+        togglePiece(board, to, slice);
+        togglePiece(board, from, flag >= FLAG_PROMOTION ? (white ? 3 : 9) : slice);
+        int captured = undo.captured();
+        if (captured != 0) togglePiece(board, flag == FLAG_EN_PASSANT ? to + (white ? -8 : 8) : to, captured);
+
+        board[15] = misc;
+        return undo.hash();
+    }
+
+    // Puts a piece on or takes it off a square, in every place that knows about it.
+    private static void togglePiece(long[] board, int square, int slice) {
+        long bit = 1L << square;
+        board[0] ^= bit;
+        board[slice <= 8 ? 1 : 2] ^= bit;
+        board[slice] ^= bit;
+        toggleMailbox(board, square, slice);
+    }
+
+    private static void toggleCastlingRook(long[] board, int kingTo, boolean white) {
+        int rook = white ? 6 : 12;
+        boolean kingside = (kingTo & 7) == 6;
+        togglePiece(board, kingside ? kingTo + 1 : kingTo - 2, rook);
+        togglePiece(board, kingside ? kingTo - 1 : kingTo + 1, rook);
+    }
+
     // ############################################################################
     // IO METHODS.
 
@@ -843,7 +1084,7 @@ public static long blackPawnMoves(long[] board) {
     }
 
     private static Piece getPiece(int square, long[] board, boolean white) {
-        int pieceType = getPieceType(square, board, !white);
+        int pieceType = getSlice(board, square) - (white ? 2 : 8);
         int rank = 7 - (square / 8);
         int file = square % 8;
 
@@ -874,9 +1115,42 @@ public static long blackPawnMoves(long[] board) {
         return b;
     }
 
+    // Long algebraic notation, e.g. 'e2e4' or 'e7e8q'. Handy for printouts and logs.
+    public static String moveToString(int move) {
+        String files = "abcdefgh";
+        StringBuilder sb = new StringBuilder(5);
+        sb.append(files.charAt(getFrom(move) % 8)).append(getFrom(move) / 8 + 1);
+        sb.append(files.charAt(getTo(move) % 8)).append(getTo(move) / 8 + 1);
+        if (getPromotion(move) != 0) sb.append("  nbrq".charAt(getPromotion(move)));
+        return sb.toString();
+    }
+
+    // ###########################################################################
+    // HASHING.
+
+    // The random 64-bit Zobrist hash keys for each of the 16 bitboard slices (the mailbox is the same information again).
+    private static final long[] ZOBRIST_KEYS = new long[16];
+    static {
+        Random rnd = new Random(0xDEADBEEFL);
+        for (int i = 0; i < 16; i++) {
+            ZOBRIST_KEYS[i] = rnd.nextLong();
+        }
+    }
+
+    // The search's hash of a position (ChessAI.computeZobrist()), and the key of the opening tree.
+    public static long zobristHash(long[] board) {
+        long h = 0;
+        for (int i = 0; i < 16; i++) {
+            h ^= board[i] * ZOBRIST_KEYS[i];
+        }
+        return h;
+    }
+
     // TODO: IO methods: bitboard to board and FEN string to bitboard.
 
     // TODO: check later.
+    // Only the first four fields: the move counters aren't part of the board. Leaving them out also means two positions that only differ
+    // in the counters give the same string, which MatchRunner relies on to spot repetitions. For a full FEN, pass the counters in.
     public static String bitboardToFENString(long[] board) {
         StringBuilder fen = new StringBuilder();
         for (int rank = 7; rank >= 0; rank--) {
@@ -902,16 +1176,89 @@ public static long blackPawnMoves(long[] board) {
         }
         fen.append(" ");
         fen.append(isWhiteToMove(board[15]) ? "w" : "b");
-        // TODO: add the rest.
+
+        boolean[] castlingRights = getCastlingRights(board[15]);
+        fen.append(" ");
+        if (castlingRights[0]) fen.append("K");
+        if (castlingRights[1]) fen.append("Q");
+        if (castlingRights[2]) fen.append("k");
+        if (castlingRights[3]) fen.append("q");
+        if (!castlingRights[0] && !castlingRights[1] && !castlingRights[2] && !castlingRights[3]) fen.append("-");
+
+        int enPassantSquare = getEnPassantSquare(board[15]);
+        fen.append(" ");
+        fen.append(enPassantSquare == -1 ? "-" : "" + "abcdefgh".charAt(enPassantSquare % 8) + (enPassantSquare / 8 + 1));
         return fen.toString();
     }
 
+    public static String bitboardToFENString(long[] board, int halfmoveClock, int fullMoveNumber) {
+        return bitboardToFENString(board) + " " + halfmoveClock + " " + fullMoveNumber;
+    }
+
+    // Reads the piece placement, side to move, castling rights and en passant square.
+    // The board has nowhere to keep the move counters; read them with fenHalfmoveClock() and fenFullMoveNumber().
     public static long[] FENStringToBitboard(String FENString) {
-        long[] board = new long[16];
-        // TODO: implement this.
+        long[] board = new long[BOARD_SIZE];
+        String[] fields = FENString.trim().split("\\s+");
+
+        int rank = 7, file = 0;
+        for (char c : fields[0].toCharArray()) {
+            if (c == '/') {
+                rank--;
+                file = 0;
+            } else if (Character.isDigit(c)) {
+                file += c - '0';
+            } else {
+                int type = switch (Character.toLowerCase(c)) {
+                    case 'p' -> 1;
+                    case 'n' -> 2;
+                    case 'b' -> 3;
+                    case 'r' -> 4;
+                    case 'q' -> 5;
+                    case 'k' -> 6;
+                    default -> throw new IllegalArgumentException("Invalid piece in FEN: " + c);
+                };
+                boolean white = Character.isUpperCase(c);
+                long bit = 1L << (rank * 8 + file);
+                board[0] |= bit;
+                board[white ? 1 : 2] |= bit;
+                board[white ? type + 2 : type + 8] |= bit;
+                file++;
+            }
+        }
+
+        boolean whiteToMove = fields.length < 2 || fields[1].equals("w");
+        String castling = fields.length > 2 ? fields[2] : "-";
+        boolean[] castlingRights = {castling.contains("K"), castling.contains("Q"), castling.contains("k"), castling.contains("q")};
+        int enPassantSquare = -1;
+        if (fields.length > 3 && !fields[3].equals("-")) {
+            enPassantSquare = (fields[3].charAt(1) - '1') * 8 + (fields[3].charAt(0) - 'a');
+        }
+        board[15] = encodeMiscData(whiteToMove, castlingRights, enPassantSquare);
+        rebuildMailbox(board);
         return board;
     }
 
+    // The FEN's fifth field: plies since the last capture or pawn move. 0 if it's missing, like in an EPD line.
+    public static int fenHalfmoveClock(String FENString) {
+        return fenCounter(FENString, 4, 0);
+    }
+
+    // The FEN's sixth field: the full-move number, starting at 1. 1 if it's missing.
+    public static int fenFullMoveNumber(String FENString) {
+        return fenCounter(FENString, 5, 1);
+    }
+
+    private static int fenCounter(String FENString, int field, int missing) {
+        String[] fields = FENString.trim().split("\\s+");
+        if (fields.length <= field) return missing;
+        try {
+            return Math.max(0, Integer.parseInt(fields[field]));
+        } catch (NumberFormatException e) {
+            return missing;
+        }
+    }
+
     static {
         // once-only: build the sliding‐piece attack tables
         new BitboardBoard().generateLookupTables();
@@ -0,0 +1,31 @@
+package Board;
+
+public class PositionStack {
+
+    // Copy-make, the alternative to making and unmaking moves on one board: every ply gets its own copy of the board,
+    // the move is only ever applied forwards, and taking it back is just going back to the previous copy.
+    // The copies are allocated once, so it's one arraycopy of BOARD_SIZE longs per move and no allocation.
+
+    private final long[][] frames;
+    private int size;
+
+    public PositionStack(int capacity) {
+        frames = new long[capacity][BitboardBoard.BOARD_SIZE];
+    }
+
+    // Copies board into the next frame and makes the (compact) move there. board itself isn't touched.
+    public long[] push(long[] board, int move) {
+        long[] next = frames[size++];
+        System.arraycopy(board, 0, next, 0, BitboardBoard.BOARD_SIZE);
+        BitboardBoard.applyMove(next, move);
+        return next;
+    }
+
+    public void pop() {
+        size--;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package Board;
+
+public class UndoStack {
+
+    // What BitboardBoard.makeMove() throws away and unmakeMove() needs back, one record per move made:
+    // board[15] from before the move (side to move, castling rights, en passant square), the captured piece, and the caller's hash.
+    // That's everything the 16-bit moves don't carry. The arrays are allocated once, so making a move never allocates.
+
+    private final long[] misc;
+    private final long[] hashes;
+    private final byte[] captured; // Bitboard index of the captured piece (3-14), or 0.
+    private int size;
+
+    public UndoStack(int capacity) {
+        misc = new long[capacity];
+        hashes = new long[capacity];
+        captured = new byte[capacity];
+    }
+
+    void push(long miscData, int capturedSlice, long hash) {
+        misc[size] = miscData;
+        captured[size] = (byte) capturedSlice;
+        hashes[size] = hash;
+        size++;
+    }
+
+    // pop() first, then read the record that was on top.
+    void pop() {
+        size--;
+    }
+
+    long misc() {
+        return misc[size];
+    }
+
+    int captured() {
+        return captured[size];
+    }
+
+    long hash() {
+        return hashes[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
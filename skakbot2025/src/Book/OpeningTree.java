@@ -0,0 +1,152 @@
+package Book;
+
+import Board.BitboardBoard;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class OpeningTree {
+
+    // Which moves were played from which positions in a game database, and how those games ended; built by OpeningTreeBuilder.
+    // Same idea as a Polyglot book: sorted fixed-size entries, memory-mapped and binary searched, so nothing is read up front.
+    // It's mapped as a MemorySegment, like the TT snapshots, so unlike a MappedByteBuffer there's no 2 GB limit on the file.
+    // The difference is the key, which is our own hash (BitboardBoard.zobristHash()), so it doesn't need the Polyglot random table,
+    // and that each entry keeps the actual results rather than one weight.
+
+    // Header layout (all big-endian):
+    // 0: int magic "SKOT"
+    // 4: int format version
+    // 8: int plies per game that went into the tree
+    // 12: int minimum number of games for an entry to be kept
+    // 16: long number of games
+    // 24: long number of entries
+    // Then the entries, sorted by key (unsigned), then move:
+    // key (8 bytes), move (2 bytes, BitboardBoard.toCompactMove()), white wins, draws, black wins (4 bytes each).
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 22;
+    static final int MAGIC = 0x534B4F54;
+    static final int VERSION = 1;
+    public static final String FILE_EXTENSION = ".skot";
+
+    // The entries are 22 bytes, so most fields aren't aligned.
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final MemorySegment entries;
+    private final long entryCount;
+    private final long games;
+    private final Random random = new Random();
+
+    // One move from a position, with the results of the games it was played in.
+    public record MoveStats(int move, int whiteWins, int draws, int blackWins) {
+
+        public int games() {
+            return whiteWins + draws + blackWins;
+        }
+
+        // Points per game for the side that played the move, 0 to 1.
+        public double score(boolean white) {
+            return (white ? whiteWins + draws / 2.0 : blackWins + draws / 2.0) / Math.max(1, games());
+        }
+    }
+
+    private OpeningTree(MemorySegment entries, long entryCount, long games) {
+        this.entries = entries;
+        this.entryCount = entryCount;
+        this.games = games;
+    }
+
+    // Returns null if there's no tree at the path.
+    public static OpeningTree open(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) throw new IOException("Not an opening tree: " + path);
+            // An automatic arena: the file stays mapped for as long as the tree is around, which for the engine's is for good.
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, Arena.ofAuto());
+            if (file.get(INT, 0) != MAGIC || file.get(INT, 4) != VERSION) {
+                throw new IOException("Not an opening tree (or the wrong version): " + path);
+            }
+            long entryCount = file.get(LONG, 24);
+            if (entryCount < 0 || size != HEADER_SIZE + entryCount * ENTRY_SIZE) {
+                throw new IOException("Opening tree has the wrong size: " + path);
+            }
+            return new OpeningTree(file, entryCount, file.get(LONG, 16));
+        }
+    }
+
+    public long size() {
+        return entryCount;
+    }
+
+    public long games() {
+        return games;
+    }
+
+    // Every move in the tree for the position, in our own encoding, most played first. Moves that aren't legal here
+    // (a hash collision with some other position) are left out.
+    public List<MoveStats> lookup(long[] board) {
+        long key = BitboardBoard.zobristHash(board);
+        int[] legalMoves = BitboardBoard.getLegalMoves(board, BitboardBoard.isWhiteToMove(board[15]));
+        List<MoveStats> moves = new ArrayList<>();
+        for (long i = lowerBound(key); i < entryCount && entries.get(LONG, HEADER_SIZE + i * ENTRY_SIZE) == key; i++) {
+            long offset = HEADER_SIZE + i * ENTRY_SIZE;
+            int compact = entries.get(SHORT, offset + 8) & 0xFFFF;
+            for (int move : legalMoves) {
+                if (BitboardBoard.toCompactMove(move) == compact) {
+                    moves.add(new MoveStats(move, entries.get(INT, offset + 10), entries.get(INT, offset + 14), entries.get(INT, offset + 18)));
+                    break;
+                }
+            }
+        }
+        moves.sort((a, b) -> Integer.compare(b.games(), a.games()));
+        return moves;
+    }
+
+    // Picks a move for the position, weighted by how many points it scored for the side playing it (2 per win, 1 per draw),
+    // so popular moves that do well come up most, and a move that only ever lost never does. Returns -1 if there's nothing.
+    public int findMove(long[] board) {
+        boolean white = BitboardBoard.isWhiteToMove(board[15]);
+        List<MoveStats> moves = lookup(board);
+        long totalWeight = 0;
+        for (MoveStats stats : moves) totalWeight += weight(stats, white);
+        if (totalWeight == 0) return -1;
+
+        long pick = (long) (random.nextDouble() * totalWeight);
+        for (MoveStats stats : moves) {
+            if (pick < weight(stats, white)) return stats.move;
+            pick -= weight(stats, white);
+        }
+        return moves.get(0).move;
+    }
+
+    private static long weight(MoveStats stats, boolean white) {
+        return 2L * (white ? stats.whiteWins : stats.blackWins) + stats.draws;
+    }
+
+    // First entry whose key is >= the given key. Keys are compared unsigned, because that's how the builder sorted them.
+    private long lowerBound(long key) {
+        long lo = 0, hi = entryCount;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(entries.get(LONG, HEADER_SIZE + mid * ENTRY_SIZE), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
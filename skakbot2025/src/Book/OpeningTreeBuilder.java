@@ -0,0 +1,335 @@
+package Book;
+
+import Board.BitboardBoard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OpeningTreeBuilder {
+
+    // Builds an OpeningTree out of PGN files of any size, without ever holding the whole database in memory.
+    // One thread reads games off the files (PgnReader) into a small queue; a worker per core takes them from there, replays the
+    // first plies, and counts (position, move, result) in its own map. When a map gets too big it's sorted and spilled to a run file,
+    // and at the end the runs are merged into the tree, summing up the same entry from different runs. At most MERGE_WAYS runs are
+    // open at a time: with more than that, they're first merged in groups into fewer, bigger runs, as many passes as it takes.
+    // So the memory use is the size of the maps plus a buffer per open run, whatever the size of the input.
+    // The disk space isn't: the runs hold every entry before treeMinGames drops the rare ones, once per run it was counted in,
+    // so they can take up to 22 bytes per ply counted (games times treePlies), however small the finished tree comes out.
+    //
+    // Games without a result are skipped, and so are the rest of a game's moves from the first one that doesn't parse or isn't legal.
+
+    // -Dskakbot.treePlies: how many plies of each game go into the tree.
+    // -Dskakbot.treeMinGames: entries played in fewer games than this are dropped, which is what keeps the tree small.
+    private static final int PLIES = Integer.getInteger("skakbot.treePlies", 24);
+    private static final int MIN_GAMES = Integer.getInteger("skakbot.treeMinGames", 2);
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    // A HashMap entry with its key and counts costs something like 100 bytes. A quarter of the heap, split between the workers.
+    private static final int SPILL_ENTRIES = (int) Math.max(10_000, Runtime.getRuntime().maxMemory() / 4 / THREADS / 100);
+    // Runs open at once during a merge, 64 KB of buffer each.
+    private static final int MERGE_WAYS = 64;
+
+    private static final PgnReader.Game END = new PgnReader.Game(Map.of(), ""); // Tells a worker there are no more games.
+
+    private final Path output;
+    private final Path tempDir;
+    private final List<Path> runs = new ArrayList<>();
+    private final AtomicLong games = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong badMoves = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(); // The first thing that killed a worker.
+
+    private record Node(long key, int move) {}
+
+    public OpeningTreeBuilder(Path output) throws IOException {
+        this.output = output;
+        Path parent = output.toAbsolutePath().getParent();
+        this.tempDir = Files.createTempDirectory(parent, "tree-runs");
+    }
+
+    public void build(List<Path> pgnFiles) throws IOException, InterruptedException {
+        System.out.println("Building " + output + " from " + pgnFiles.size() + " PGN files: " + PLIES + " plies, at least " + MIN_GAMES
+                + " games per entry, " + THREADS + " threads, spilling every " + SPILL_ENTRIES + " entries");
+        long start = System.nanoTime();
+
+        BlockingQueue<PgnReader.Game> queue = new ArrayBlockingQueue<>(1024);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    work(queue);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "tree-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        // A worker that dies doesn't take games off the queue any more; with all of them gone, a put() would wait forever.
+        // So the reader stops as soon as one has failed, and only ever waits on the queue for a moment before checking again.
+        try {
+            long read = 0;
+            reading:
+            for (Path file : pgnFiles) {
+                try (PgnReader reader = new PgnReader(Files.newBufferedReader(file, StandardCharsets.ISO_8859_1))) {
+                    for (PgnReader.Game game = reader.next(); game != null; game = reader.next()) {
+                        if (!hand(queue, game, workers) || failure.get() != null) break reading;
+                        if (++read % 100_000 == 0) {
+                            double seconds = (System.nanoTime() - start) / 1e9;
+                            System.out.printf("%,d games read, %,.0f games/s%n", read, read / seconds);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (failure.get() != null) queue.clear(); // Nobody's going to count the rest now.
+            for (int i = 0; i < THREADS; i++) {
+                if (!hand(queue, END, workers)) break;
+            }
+            for (Thread worker : workers) worker.join();
+        }
+        if (failure.get() != null) {
+            deleteRuns();
+            throw new IOException("A tree worker failed", failure.get());
+        }
+
+        long entries = merge();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Done: %,d games (%,d skipped, %,d with a bad move), %,d entries, %.1f s, %,.0f games/s%n",
+                games.get(), skipped.get(), badMoves.get(), entries, seconds, games.get() / seconds);
+    }
+
+    // Puts the game on the queue, unless a worker has failed or there's no worker left to take it. False if it didn't.
+    private boolean hand(BlockingQueue<PgnReader.Game> queue, PgnReader.Game game, List<Thread> workers) throws InterruptedException {
+        while (!queue.offer(game, 100, TimeUnit.MILLISECONDS)) {
+            if ((failure.get() != null && game != END) || workers.stream().noneMatch(Thread::isAlive)) return false;
+        }
+        return true;
+    }
+
+    // ###########################################################################
+    // COUNTING.
+
+    private void work(BlockingQueue<PgnReader.Game> queue) throws IOException, InterruptedException {
+        Map<Node, int[]> counts = new HashMap<>();
+        while (true) {
+            PgnReader.Game game = queue.take();
+            if (game == END) break;
+
+            Integer result = game.result();
+            if (result == null) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            int column = 1 - result; // White wins, draws, black wins.
+            long[] board;
+            try {
+                board = game.startPosition();
+            } catch (RuntimeException e) {
+                skipped.incrementAndGet(); // A broken FEN tag.
+                continue;
+            }
+            games.incrementAndGet();
+
+            // One game the move generator chokes on (a position no legal game gets to, say) shouldn't take the worker down with it.
+            List<String> moves = game.sanMoves();
+            try {
+                for (int ply = 0; ply < Math.min(PLIES, moves.size()); ply++) {
+                    int move = PgnReader.parseSan(board, moves.get(ply));
+                    if (move == -1) {
+                        badMoves.incrementAndGet();
+                        break;
+                    }
+                    int compact = BitboardBoard.toCompactMove(move);
+                    counts.computeIfAbsent(new Node(BitboardBoard.zobristHash(board), compact), k -> new int[3])[column]++;
+                    BitboardBoard.applyMove(board, compact);
+                }
+            } catch (RuntimeException e) {
+                badMoves.incrementAndGet();
+            }
+
+            if (counts.size() >= SPILL_ENTRIES) {
+                spill(counts);
+                counts.clear();
+            }
+        }
+        if (!counts.isEmpty()) spill(counts);
+    }
+
+    // Writes the map, sorted the way the tree is, to a new run file.
+    private void spill(Map<Node, int[]> counts) throws IOException {
+        List<Map.Entry<Node, int[]>> sorted = new ArrayList<>(counts.entrySet());
+        sorted.sort((a, b) -> compare(a.getKey().key, a.getKey().move, b.getKey().key, b.getKey().move));
+
+        Path run = Files.createTempFile(tempDir, "run", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+            for (Map.Entry<Node, int[]> entry : sorted) {
+                writeEntry(out, entry.getKey().key, entry.getKey().move, entry.getValue());
+            }
+        }
+        synchronized (runs) {
+            runs.add(run);
+        }
+    }
+
+    private static int compare(long keyA, int moveA, long keyB, int moveB) {
+        int c = Long.compareUnsigned(keyA, keyB);
+        return c != 0 ? c : Integer.compare(moveA, moveB);
+    }
+
+    private static void writeEntry(DataOutputStream out, long key, int move, int[] counts) throws IOException {
+        out.writeLong(key);
+        out.writeShort(move);
+        out.writeInt(counts[0]);
+        out.writeInt(counts[1]);
+        out.writeInt(counts[2]);
+    }
+
+    // ###########################################################################
+    // MERGING.
+
+    // One run file being merged, with the entry it's currently at.
+    private static class Run {
+        final DataInputStream in;
+        long key;
+        int move;
+        final int[] counts = new int[3];
+
+        Run(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        // False at the end of the file.
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            move = in.readUnsignedShort();
+            for (int i = 0; i < 3; i++) counts[i] = in.readInt();
+            return true;
+        }
+    }
+
+    // Merges the runs into the tree. Returns the number of entries written.
+    private long merge() throws IOException {
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        long entries;
+        try {
+            // MERGE_WAYS runs at a time into one, until there are few enough left for the last merge.
+            int passes = 0;
+            while (runs.size() > MERGE_WAYS) {
+                List<Path> inputs = new ArrayList<>(runs);
+                for (int i = 0; i < inputs.size(); i += MERGE_WAYS) {
+                    List<Path> group = inputs.subList(i, Math.min(i + MERGE_WAYS, inputs.size()));
+                    if (group.size() == 1) continue; // Nothing to merge it with; it just stays.
+                    Path merged = Files.createTempFile(tempDir, "run", ".bin");
+                    runs.add(merged);
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(merged), 1 << 16))) {
+                        mergeRuns(group, out, 1); // Nothing's dropped until the counts are complete.
+                    }
+                    for (Path path : group) {
+                        Files.delete(path);
+                        runs.remove(path);
+                    }
+                }
+                passes++;
+            }
+            if (passes > 0) System.out.println(passes + " merge passes before the last one");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.write(new byte[OpeningTree.HEADER_SIZE]); // Filled in below, once the counts are known.
+                entries = mergeRuns(runs, out, MIN_GAMES);
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+                file.writeInt(OpeningTree.MAGIC);
+                file.writeInt(OpeningTree.VERSION);
+                file.writeInt(PLIES);
+                file.writeInt(MIN_GAMES);
+                file.writeLong(games.get());
+                file.writeLong(entries);
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deleteRuns();
+            Files.deleteIfExists(temp);
+        }
+        return entries;
+    }
+
+    // k-way merge of the given runs into out, summing up the same entry from different runs and leaving out the ones
+    // played in fewer than minGames games. Returns the number of entries written.
+    private static long mergeRuns(List<Path> inputs, DataOutputStream out, int minGames) throws IOException {
+        PriorityQueue<Run> heads = new PriorityQueue<>((a, b) -> compare(a.key, a.move, b.key, b.move));
+        List<Run> open = new ArrayList<>();
+        long entries = 0;
+        try {
+            for (Path path : inputs) {
+                Run run = new Run(path);
+                open.add(run);
+                if (run.advance()) heads.add(run);
+            }
+
+            int[] sum = new int[3];
+            while (!heads.isEmpty()) {
+                Run first = heads.poll();
+                long key = first.key;
+                int move = first.move;
+                System.arraycopy(first.counts, 0, sum, 0, 3);
+                if (first.advance()) heads.add(first);
+                while (!heads.isEmpty() && heads.peek().key == key && heads.peek().move == move) {
+                    Run same = heads.poll();
+                    for (int i = 0; i < 3; i++) sum[i] += same.counts[i];
+                    if (same.advance()) heads.add(same);
+                }
+                if (sum[0] + sum[1] + sum[2] >= minGames) {
+                    writeEntry(out, key, move, sum);
+                    entries++;
+                }
+            }
+        } finally {
+            for (Run run : open) run.in.close();
+        }
+        return entries;
+    }
+
+    private void deleteRuns() throws IOException {
+        for (Path path : runs) Files.deleteIfExists(path);
+        Files.deleteIfExists(tempDir);
+    }
+
+    // Usage: OpeningTreeBuilder <output file> <PGN files...>
+    // e.g. java -Dskakbot.treePlies=30 -Dskakbot.treeMinGames=5 Book.OpeningTreeBuilder tree.skot lichess_2024-01.pgn
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: OpeningTreeBuilder <output file> <PGN files...>");
+            return;
+        }
+        new BitboardBoard().generateLookupTables();
+        List<Path> pgnFiles = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) pgnFiles.add(Path.of(args[i]));
+        new OpeningTreeBuilder(Path.of(args[0])).build(pgnFiles);
+    }
+}
@@ -0,0 +1,199 @@
+package Book;
+
+import Board.BitboardBoard;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PgnReader implements Closeable {
+
+    // Reads a PGN file one game at a time, straight off the stream, so a database of any size goes through in the memory of one game.
+    // next() only splits the text into games (tag pairs and movetext); turning the movetext into moves is left to whoever gets
+    // the game, so the parsing and replaying can happen on other threads while this one keeps reading.
+    //
+    // A game ends where the next one's tags start, or at the end of the file. The movetext can contain comments ({...} and ;),
+    // variations ((...), nested), NAGs ($1), move numbers and annotations (!?, +, #); sanMoves() drops all of that.
+
+    private static final Pattern TAG = Pattern.compile("\\[\\s*(\\w+)\\s+\"((?:[^\"\\\\]|\\\\.)*)\"\\s*]");
+    public static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    private final BufferedReader in;
+    private String pendingLine; // The first tag of the next game, read while looking for the end of the last one.
+    private boolean firstLine = true;
+
+    public record Game(Map<String, String> tags, String movetext) {
+
+        public String tag(String name) {
+            return tags.get(name);
+        }
+
+        // 1 for a white win, 0 for a draw, -1 for a black win, or null if the game has no result (unfinished, or '*').
+        public Integer result() {
+            String result = tags.get("Result");
+            if (result == null) return null;
+            return switch (result) {
+                case "1-0" -> 1;
+                case "0-1" -> -1;
+                case "1/2-1/2" -> 0;
+                default -> null;
+            };
+        }
+
+        // The position the game starts from: the FEN tag if there is one, the normal starting position otherwise.
+        public long[] startPosition() {
+            String fen = tags.get("FEN");
+            return BitboardBoard.FENStringToBitboard(fen != null ? fen : START_FEN);
+        }
+
+        public List<String> sanMoves() {
+            return PgnReader.sanMoves(movetext);
+        }
+    }
+
+    // PGN is officially Latin-1, and plenty of files out there are UTF-8; either way the movetext is plain ASCII,
+    // so the reader should be opened with ISO_8859_1, which can't fail on any byte.
+    public PgnReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    // The next game, or null at the end of the file.
+    public Game next() throws IOException {
+        Map<String, String> tags = new LinkedHashMap<>();
+        StringBuilder movetext = new StringBuilder();
+        while (true) {
+            String line = pendingLine != null ? pendingLine : in.readLine();
+            pendingLine = null;
+            if (line == null) break;
+            if (firstLine) {
+                firstLine = false;
+                if (line.startsWith("\uFEFF")) line = line.substring(1); // Byte order mark.
+            }
+
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("%")) continue; // '%' lines are an escape mechanism; nobody uses it.
+            if (trimmed.startsWith("[") && movetext.isEmpty()) {
+                Matcher m = TAG.matcher(trimmed);
+                if (m.matches()) tags.put(m.group(1), m.group(2).replace("\\\"", "\"").replace("\\\\", "\\"));
+            } else if (trimmed.startsWith("[")) {
+                pendingLine = line; // The next game's tags.
+                break;
+            } else {
+                movetext.append(trimmed).append('\n');
+            }
+        }
+        if (tags.isEmpty() && movetext.isEmpty()) return null;
+        return new Game(tags, movetext.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // ###########################################################################
+    // MOVETEXT.
+
+    // Just the main line's moves, in SAN, e.g. [e4, e5, Nf3, Nc6, Bb5]. Stops at the result.
+    public static List<String> sanMoves(String movetext) {
+        List<String> moves = new ArrayList<>();
+        int variationDepth = 0;
+        int i = 0, n = movetext.length();
+        while (i < n) {
+            char c = movetext.charAt(i);
+            if (c == '{') { // Comment, up to the closing brace; they don't nest.
+                int end = movetext.indexOf('}', i);
+                i = end == -1 ? n : end + 1;
+            } else if (c == ';') { // Comment, up to the end of the line.
+                int end = movetext.indexOf('\n', i);
+                i = end == -1 ? n : end + 1;
+            } else if (c == '(') {
+                variationDepth++;
+                i++;
+            } else if (c == ')') {
+                variationDepth = Math.max(0, variationDepth - 1);
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(movetext.charAt(i)) && "{;()".indexOf(movetext.charAt(i)) == -1) i++;
+                if (variationDepth > 0) continue;
+                String token = movetext.substring(start, i);
+                if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) break;
+                if (token.startsWith("$")) continue; // NAG.
+
+                // Move numbers, '12.' or '12...', which may or may not be followed by a space before the move.
+                int skip = 0;
+                while (skip < token.length() && Character.isDigit(token.charAt(skip))) skip++;
+                if (skip < token.length() && token.charAt(skip) == '.') {
+                    while (skip < token.length() && token.charAt(skip) == '.') skip++;
+                    token = token.substring(skip);
+                }
+                if (!token.isEmpty()) moves.add(token);
+            }
+        }
+        return moves;
+    }
+
+    // Finds the legal move in the position that the SAN move means, e.g. 'Nbd7', 'exd6', 'e8=Q+', 'O-O'. Returns -1 if there's none,
+    // or if it's ambiguous. Matching against the generated legal moves means the game is checked for legality as it's replayed.
+    public static int parseSan(long[] board, String san) {
+        boolean white = BitboardBoard.isWhiteToMove(board[15]);
+        int end = san.length();
+        while (end > 0 && "+#!?".indexOf(san.charAt(end - 1)) != -1) end--;
+        String s = san.substring(0, end);
+        if (s.endsWith("e.p.")) s = s.substring(0, s.length() - 4);
+        int[] legalMoves = BitboardBoard.getLegalMoves(board, white);
+
+        if (s.equals("O-O") || s.equals("0-0") || s.equals("O-O-O") || s.equals("0-0-0")) {
+            int to = s.length() == 3 ? (white ? 6 : 62) : (white ? 2 : 58);
+            for (int move : legalMoves) {
+                if (BitboardBoard.isCastling(move) && BitboardBoard.getTo(move) == to) return move;
+            }
+            return -1;
+        }
+
+        // Promotion, 'e8=Q' or (older files) 'e8Q'.
+        int promotion = 0;
+        if (s.length() > 2 && "NBRQ".indexOf(s.charAt(s.length() - 1)) != -1) {
+            promotion = "NBRQ".indexOf(s.charAt(s.length() - 1)) + 2;
+            s = s.substring(0, s.length() - (s.charAt(s.length() - 2) == '=' ? 2 : 1));
+        }
+        if (s.length() < 2) return -1;
+
+        int piece = "PNBRQK".indexOf(s.charAt(0)) + 1; // 0 if it's a pawn move, which doesn't start with a letter.
+        int to = square(s.charAt(s.length() - 2), s.charAt(s.length() - 1));
+        if (to == -1) return -1;
+        int fromFile = -1, fromRank = -1;
+        for (int i = piece == 0 ? 0 : 1; i < s.length() - 2; i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'h') fromFile = c - 'a';
+            else if (c >= '1' && c <= '8') fromRank = c - '1';
+            else if (c != 'x' && c != '-' && c != ':') return -1;
+        }
+        if (piece == 0) piece = 1;
+
+        int found = -1;
+        for (int move : legalMoves) {
+            int from = BitboardBoard.getFrom(move);
+            if (BitboardBoard.getPiece(move) != piece || BitboardBoard.getTo(move) != to || BitboardBoard.isCastling(move)) continue;
+            if (BitboardBoard.getPromotion(move) != promotion) continue;
+            if ((fromFile != -1 && from % 8 != fromFile) || (fromRank != -1 && from / 8 != fromRank)) continue;
+            if (found != -1) return -1; // Ambiguous.
+            found = move;
+        }
+        return found;
+    }
+
+    private static int square(char file, char rank) {
+        if (file < 'a' || file > 'h' || rank < '1' || rank > '8') return -1;
+        return (rank - '1') * 8 + (file - 'a');
+    }
+}
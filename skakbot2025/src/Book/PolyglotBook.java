@@ -0,0 +1,138 @@
+package Book;
+
+import Board.BitboardBoard;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class PolyglotBook {
+
+    // A Polyglot .bin book is just a big array of 16-byte entries, sorted by key:
+    // key (8 bytes), move (2 bytes), weight (2 bytes), learn (4 bytes). Everything is big-endian.
+    // Since it's sorted, we can memory-map the whole thing and binary search it without reading anything up front;
+    // the OS only pages in the handful of entries we actually touch.
+
+    private static final int ENTRY_SIZE = 16;
+
+    private final MappedByteBuffer entries;
+    private final int entryCount;
+    private final Random random = new Random();
+
+    private PolyglotBook(MappedByteBuffer entries, int entryCount) {
+        this.entries = entries;
+        this.entryCount = entryCount;
+    }
+
+    // Returns null if there's no book at the path or the Polyglot keys aren't available.
+    public static PolyglotBook open(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) return null;
+        if (!PolyglotKeys.ensureLoaded()) return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Opening book is too large to map: " + size + " bytes");
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new PolyglotBook(buffer, (int) (size / ENTRY_SIZE));
+        }
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    // Picks a book move for the position, weighted by the entries' weights, and returns it in our own encoding.
+    // Returns -1 if the position isn't in the book or none of the book moves are legal here.
+    public int findMove(long[] board) {
+        long key = PolyglotKeys.computeKey(board);
+        int first = lowerBound(key);
+
+        int totalWeight = 0;
+        int last = first;
+        while (last < entryCount && entries.getLong(last * ENTRY_SIZE) == key) {
+            totalWeight += weightAt(last);
+            last++;
+        }
+        if (last == first) return -1;
+
+        // Weighted pick. If every entry has weight 0, treat them all as equal.
+        int pick = totalWeight > 0 ? random.nextInt(totalWeight) : random.nextInt(last - first);
+        int chosen = first;
+        for (int i = first; i < last; i++) {
+            int weight = totalWeight > 0 ? weightAt(i) : 1;
+            if (pick < weight) {
+                chosen = i;
+                break;
+            }
+            pick -= weight;
+        }
+
+        int move = toEngineMove(board, moveAt(chosen));
+        if (move != -1) return move;
+
+        // The chosen move didn't match anything legal (e.g. a hash collision); try the rest before giving up.
+        for (int i = first; i < last; i++) {
+            move = toEngineMove(board, moveAt(i));
+            if (move != -1) return move;
+        }
+        return -1;
+    }
+
+    // First entry whose key is >= the given key. Keys are compared unsigned, because that's how the book was sorted.
+    private int lowerBound(long key) {
+        int lo = 0, hi = entryCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(entries.getLong(mid * ENTRY_SIZE), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int moveAt(int index) {
+        return entries.getShort(index * ENTRY_SIZE + 8) & 0xFFFF;
+    }
+
+    private int weightAt(int index) {
+        return entries.getShort(index * ENTRY_SIZE + 10) & 0xFFFF;
+    }
+
+    // Polyglot moves are packed as: to file (bits 0-2), to rank (3-5), from file (6-8), from rank (9-11), promotion (12-14).
+    // Promotion is 1 = knight ... 4 = queen, which is ours minus one.
+    // Castling is written as 'king takes own rook', e.g. e1h1, so that gets translated to e1g1.
+    private static int toEngineMove(long[] board, int polyMove) {
+        int to = polyMove & 0x3F;
+        int from = (polyMove >>> 6) & 0x3F;
+        int promotion = (polyMove >>> 12) & 0x7;
+        promotion = promotion == 0 ? 0 : promotion + 1;
+
+        boolean white = BitboardBoard.isWhiteToMove(board[15]);
+        if ((board[white ? 8 : 14] & (1L << from)) != 0L) {
+            if (from == 4 && to == 7) to = 6;
+            else if (from == 4 && to == 0) to = 2;
+            else if (from == 60 && to == 63) to = 62;
+            else if (from == 60 && to == 56) to = 58;
+        }
+
+        for (int move : BitboardBoard.getAllMoves(board, white)) {
+            if (BitboardBoard.getFrom(move) != from || BitboardBoard.getTo(move) != to || BitboardBoard.getPromotion(move) != promotion) continue;
+
+            // The generator doesn't filter out moves that leave the king in check, so double-check before trusting the book.
+            BitboardBoard.makeOrUndoMove(board, move);
+            boolean legal = !BitboardBoard.isInCheck(board, white);
+            BitboardBoard.makeOrUndoMove(board, move);
+            if (legal) return move;
+        }
+        return -1;
+    }
+}
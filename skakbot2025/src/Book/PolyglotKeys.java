@@ -0,0 +1,144 @@
+package Book;
+
+import Board.BitboardBoard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PolyglotKeys {
+
+    // Polyglot books are keyed by a Zobrist hash built from a *specific* table of 781 random numbers.
+    // Our own hash in ChessAI uses different keys, so it can't be used to look anything up in a .bin book.
+    // The layout of the table is:
+    // 0-767: one key per (piece kind, square), where the kind is 0 = black pawn, 1 = white pawn, 2 = black knight, ... 11 = white king.
+    // 768-771: castling rights, in the order white kingside, white queenside, black kingside, black queenside.
+    // 772-779: en passant file, only included if a pawn can actually make the capture.
+    // 780: white to move.
+
+    // The table ships as resources/polyglot_random64.txt. -Dskakbot.polyglotRandom=... loads another copy instead: any text or source
+    // file containing the 781 numbers as 0x... hex literals (e.g. the Random64 array from polyglot's random.c),
+    // or a raw binary file of 781 big-endian longs.
+    public static final int TABLE_SIZE = 781;
+    private static final int CASTLE_OFFSET = 768;
+    private static final int EN_PASSANT_OFFSET = 772;
+    private static final int TURN_OFFSET = 780;
+
+    // The well-known key of the starting position. If this doesn't come out right, the table is wrong and the book is useless.
+    public static final long START_POSITION_KEY = 0x463B96181691FC9CL;
+
+    private static final String DEFAULT_RESOURCE = "/resources/polyglot_random64.txt";
+    private static final Pattern HEX_LITERAL = Pattern.compile("0[xX]([0-9A-Fa-f]{16})");
+
+    private static long[] random64;
+    private static boolean loadAttempted = false;
+
+    // Returns true if a valid table could be found. Looks at the 'skakbot.polyglotRandom' system property first, then the classpath.
+    public static synchronized boolean ensureLoaded() {
+        if (loadAttempted) return random64 != null;
+        loadAttempted = true;
+
+        try {
+            String path = System.getProperty("skakbot.polyglotRandom");
+            byte[] data = null;
+            if (path != null) {
+                data = Files.readAllBytes(Path.of(path));
+            } else {
+                try (InputStream in = PolyglotKeys.class.getResourceAsStream(DEFAULT_RESOURCE)) {
+                    if (in != null) data = in.readAllBytes();
+                }
+            }
+            if (data == null) {
+                System.out.println("Polyglot random table not found; opening book disabled.");
+                return false;
+            }
+
+            long[] table = parseTable(data);
+            if (table == null) {
+                System.out.println("Polyglot random table doesn't contain " + TABLE_SIZE + " keys; opening book disabled.");
+                return false;
+            }
+            random64 = table;
+
+            long startKey = computeKey(new BitboardBoard().getFullBoard());
+            if (startKey != START_POSITION_KEY) {
+                System.out.println("Polyglot random table gives the wrong start position key (" + Long.toHexString(startKey) + "); opening book disabled.");
+                random64 = null;
+                return false;
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't read the Polyglot random table: " + e.getMessage());
+            random64 = null;
+        }
+        return random64 != null;
+    }
+
+    private static long[] parseTable(byte[] data) {
+        // Raw binary: exactly 781 longs.
+        if (data.length == TABLE_SIZE * 8) {
+            long[] table = new long[TABLE_SIZE];
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                long v = 0L;
+                for (int b = 0; b < 8; b++) {
+                    v = (v << 8) | (data[i * 8 + b] & 0xFFL);
+                }
+                table[i] = v;
+            }
+            return table;
+        }
+
+        // Otherwise treat it as text and pick out the hex literals in order.
+        long[] table = new long[TABLE_SIZE];
+        int count = 0;
+        Matcher m = HEX_LITERAL.matcher(new String(data, StandardCharsets.US_ASCII));
+        while (m.find() && count < TABLE_SIZE) {
+            table[count++] = Long.parseUnsignedLong(m.group(1), 16);
+        }
+        return count == TABLE_SIZE ? table : null;
+    }
+
+    // Computes the Polyglot key straight from our 16-slice bitboard.
+    // Both use A1 = square 0 and H8 = square 63, so no square conversion is needed.
+    public static long computeKey(long[] board) {
+        long key = 0L;
+
+        for (int i = 3; i < 15; i++) {
+            boolean white = i < 9;
+            int type = white ? i - 3 : i - 9; // 0 = pawn ... 5 = king.
+            int kind = type * 2 + (white ? 1 : 0);
+            long pieces = board[i];
+            while (pieces != 0L) {
+                int square = Long.numberOfTrailingZeros(pieces);
+                key ^= random64[64 * kind + square];
+                pieces &= pieces - 1;
+            }
+        }
+
+        boolean[] castlingRights = BitboardBoard.getCastlingRights(board[15]);
+        for (int i = 0; i < 4; i++) {
+            if (castlingRights[i]) key ^= random64[CASTLE_OFFSET + i];
+        }
+
+        // Polyglot only hashes the en passant file if a pawn of the side to move is actually next to the pawn that just moved.
+        boolean whiteToMove = BitboardBoard.isWhiteToMove(board[15]);
+        int epSquare = BitboardBoard.getEnPassantSquare(board[15]);
+        if (epSquare != -1) {
+            int file = epSquare % 8;
+            int pawnSquare = whiteToMove ? epSquare - 8 : epSquare + 8; // The square of the pawn that made the double push.
+            long neighbours = 0L;
+            if (file > 0) neighbours |= 1L << (pawnSquare - 1);
+            if (file < 7) neighbours |= 1L << (pawnSquare + 1);
+            if ((neighbours & board[whiteToMove ? 3 : 9]) != 0L) {
+                key ^= random64[EN_PASSANT_OFFSET + file];
+            }
+        }
+
+        if (whiteToMove) key ^= random64[TURN_OFFSET];
+
+        return key;
+    }
+}
@@ -1,241 +1,492 @@
-import Board.Board;
+import Book.OpeningTree;
+import Book.PolyglotBook;
+import Evaluation.Evaluator;
+import Evaluation.NNUEEvaluation;
 import Evaluation.SimpleEvaluation;
 import Board.BitboardBoard;
-import Pieces.Piece;
-
+import Search.SearchEvents;
+import Search.SearchStatistics;
+import Search.SearchTelemetry;
+import Search.TimeManager;
+import Search.TranspositionTable;
+import Tablebase.Tablebases;
+
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class ChessAI {
-    private static final int MAX_DEPTH =30;
-    private static final long TIME_LIMIT = 14_950_000_000L;
-    // Value set to attempt early cutoffs by not starting at +-∞
-    private static final int ASPIRATION_MARGIN = 1000;
-    private static final int MATE_SCORE = 1_000_000;
-    private long currentHash;
-    private int totalMovesEvaluated = 0;
-    private int cutoffsMade = 0;
-
-    // A Signature which points at the random 64-bit Zobrist hash keys for each of the 16 bitboard slices
-    private static final long[] ZOBRIST_KEYS = new long[16];
-    static {
-        Random rnd = new Random(0xDEADBEEFL);
-        for (int i = 0; i < 16; i++) {
-            ZOBRIST_KEYS[i] = rnd.nextLong();
-        }
-    }
+    static final int MAX_DEPTH =30;
+    static final int MATE_SCORE = 1_000_000;
+    // Bigger than any score the search can return, and still safe to negate, unlike Integer.MIN_VALUE.
+    static final int INFINITY = MATE_SCORE + 1;
+    // Anything beyond this is a mate (or tablebase) score rather than an evaluation.
+    static final int MATE_BOUND = MATE_SCORE / 2;
+    // Half-width of the first aspiration window around the previous iteration's score, in centipawns.
+    private static final int ASPIRATION_WINDOW = 50;
+
+    // The longest path the search can go down, extensions included. Searcher does the draw detection along it.
+    static final int MAX_PLY = 128;
+    static final int FIFTY_MOVE_PLIES = 100;
+    private int lastSearchDepth = 0;
 
     private static boolean tablesInitialized = false;
-    private static synchronized void ensureLookupTables() {
+    static synchronized void ensureLookupTables() {
         if (!tablesInitialized) {
             new BitboardBoard().generateLookupTables();
             tablesInitialized = true;
         }
     }
 
-    private static class TranspositionTableEntry {
-        int depth, value, flag;
-        int bestMove;
+    // Polyglot opening book, if there is one. The path can be overridden with -Dskakbot.book=...
+    private static PolyglotBook book;
+    private static boolean bookLoaded = false;
+    private static synchronized PolyglotBook getBook() {
+        if (!bookLoaded) {
+            bookLoaded = true;
+            try {
+                book = PolyglotBook.open(Path.of(System.getProperty("skakbot.book", "book.bin")));
+                if (book != null) System.out.println("Opening book loaded: " + book.size() + " entries");
+            } catch (IOException e) {
+                System.out.println("Couldn't open the opening book: " + e.getMessage());
+            }
+        }
+        return book;
     }
-    private final Map<Long,TranspositionTableEntry> TRANSPOSITION_TABLE = new HashMap<>();
-    private final SimpleEvaluation evaluator = new SimpleEvaluation();
-    private long[] boardState;
 
-    public void startSearchThread(Board board, boolean isWhite, Runnable onMoveComplete) {
-        new Thread(() -> {
-            // ensure our sliding‐piece tables are built once
-            ensureLookupTables();
+    // Opening tree built from a game database by OpeningTreeBuilder, tried when the book has nothing. -Dskakbot.tree=...
+    private static OpeningTree tree;
+    private static boolean treeLoaded = false;
+    private static synchronized OpeningTree getTree() {
+        if (!treeLoaded) {
+            treeLoaded = true;
+            try {
+                tree = OpeningTree.open(Path.of(System.getProperty("skakbot.tree", "tree" + OpeningTree.FILE_EXTENSION)));
+                if (tree != null) System.out.println("Opening tree loaded: " + tree.size() + " entries from " + tree.games() + " games");
+            } catch (IOException e) {
+                System.out.println("Couldn't open the opening tree: " + e.getMessage());
+            }
+        }
+        return tree;
+    }
 
-            // Reset assist counters
-            totalMovesEvaluated = 0;
-            cutoffsMade        = 0;
+    // Off the heap, so it can be as big as the machine allows without touching -Xmx: -Dskakbot.hash=<MB>, 64 by default.
+    // -Dskakbot.largePages=true asks the OS to back it with huge pages. Freed by shutdown().
+    private static final long HASH_MB = Long.getLong("skakbot.hash", 64);
+    private final TranspositionTable transpositionTable;
+    // -Dskakbot.ttSnapshot=analysis.sktt starts the TT off with what was saved there last time (if it's from the same engine version
+    // and evaluation; the snapshot's size wins over -Dskakbot.hash), and shutdown() saves it back for next time.
+    private static final String TT_SNAPSHOT = System.getProperty("skakbot.ttSnapshot");
+    // Goes into the TT snapshots. Bump it whenever a change makes old TT entries wrong: the hashing, the scores, or what depth means.
+    public static final int ENGINE_VERSION = 2;
+    private final Evaluator evaluator;
+    private long[] boardState;
+    private TimeManager timeManager;
+    private final SearchStatistics stats = new SearchStatistics();
+    private final Searcher searcher; // The node function, and the stacks it searches with.
 
-            // pack the GUI Board into our 16‐slice bitboard
-            boardState  = boardToBitboard(board, isWhite);
-            currentHash = computeZobrist(boardState);
-            TRANSPOSITION_TABLE.clear();
+    // -Dskakbot.threads=N with N > 1 swaps the normal single-threaded search for YoungBrothersSearch on N threads.
+    private static final int THREADS = Integer.getInteger("skakbot.threads", 1);
+    private final YoungBrothersSearch parallelSearch;
 
-            // run iterative minimax search with timer applied
-            Map<Long,Integer> rootRepeats = new HashMap<>();
-            rootRepeats.put(currentHash, 1);
-            int bestEnc = iterativeDeepeningSearch(boardState, isWhite, TIME_LIMIT, rootRepeats);
+    public ChessAI() {
+        this(createEvaluator());
+    }
 
-            // If a move was found, apply it to the bitboard, convert back to 2D, and update the GUI.
-            if (bestEnc != -1) {
-                boardState = BitboardBoard.makeOrUndoMove(boardState, bestEnc);
-                Board newBoard = BitboardBoard.bitboardToBoard(boardState);
-                board.board   = newBoard.board;
-            }
+    // For benchmarks and engine-vs-engine matches that want to pick the evaluator themselves.
+    public ChessAI(Evaluator evaluator) {
+        this.evaluator = evaluator;
+        this.transpositionTable = createTranspositionTable(evaluator);
+        this.searcher = new Searcher(evaluator, transpositionTable, stats);
+        this.parallelSearch = THREADS > 1 ? new YoungBrothersSearch(THREADS, evaluator, transpositionTable) : null;
+    }
 
-            // informational printout to devs to evaluate quality (happens only at the end, will not affect algoritmn speed)
-            System.out.println("Total moves evaluated: " + totalMovesEvaluated);
-            System.out.println("Cutoffs made: " + cutoffsMade);
-
-            // let the GUI know we’re done.
-            if (onMoveComplete != null) onMoveComplete.run();
-        }).start();
-    }
-
-    private long[] boardToBitboard(Board b, boolean whiteToMove) {
-        long[] s = new long[16];
-        Arrays.fill(s, 0L);
-
-        // misc data: whiteToMove, castling rights, no en passant
-        boolean[] cr = {
-                b.canCastle(true,  +1),
-                b.canCastle(true,  -1),
-                b.canCastle(false, +1),
-                b.canCastle(false, -1)
-        };
-        s[15] = BitboardBoard.encodeMiscData(whiteToMove, cr, -1);
-
-        for (int r = 0; r < 8; r++) {
-            for (int c = 0; c < 8; c++) {
-                Piece p = b.board[r][c];
-                if (p == null) continue;
-                int sq   = (r*8 + c) ^ 56;   // flip A1→LSB
-                long m   = 1L << sq;
-                s[0]    |= m;
-                if (p.isWhite()) s[1] |= m; else s[2] |= m;
-
-                int type = switch(p.getClass().getSimpleName().toLowerCase()) {
-                    case "pawn"   -> 1;
-                    case "knight" -> 2;
-                    case "bishop" -> 3;
-                    case "rook"   -> 4;
-                    case "queen"  -> 5;
-                    case "king"   -> 6;
-                    default       -> 0;
-                };
-                int idx = p.isWhite() ? (2 + type) : (8 + type);
-                s[idx] |= m;
+    // -Dskakbot.eval=nnue swaps in the neural network (weights from -Dskakbot.nnue, default nnue.bin).
+    // Anything else, or a network that fails to load, gives the hand-written SimpleEvaluation.
+    private static Evaluator createEvaluator() {
+        if ("nnue".equalsIgnoreCase(System.getProperty("skakbot.eval"))) {
+            try {
+                return NNUEEvaluation.load(Path.of(System.getProperty("skakbot.nnue", "nnue.bin")));
+            } catch (IOException e) {
+                System.out.println("Couldn't load the NNUE weights, falling back to SimpleEvaluation: " + e.getMessage());
             }
         }
+        return new SimpleEvaluation();
+    }
 
-        return s;
+    private static TranspositionTable createTranspositionTable(Evaluator evaluator) {
+        if (TT_SNAPSHOT != null) {
+            try {
+                long start = System.nanoTime();
+                TranspositionTable snapshot = TranspositionTable.load(Path.of(TT_SNAPSHOT), ENGINE_VERSION, evaluator.evalHash());
+                if (snapshot != null) {
+                    System.out.println("TT snapshot loaded: " + (snapshot.sizeBytes() >> 20) + " MB in " + (System.nanoTime() - start) / 1000 + " µs");
+                    return snapshot;
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't load the TT snapshot, starting with an empty TT: " + e.getMessage());
+            }
+        }
+        return new TranspositionTable(HASH_MB << 20, Boolean.getBoolean("skakbot.largePages"));
     }
 
-    private int iterativeDeepeningSearch(long[] state, boolean isWhite, long timeLimit, Map<Long,Integer> rootRepeats) {
-        long start = System.nanoTime();
-        int lastScore = 0, bestMove = -1;
-        int bestDepth = 0;
+    // ###########################################################################
+    // SEARCH WORKER, for the GUI: one long-lived thread per ChessAI that searches whatever it's given.
+    // submit() hands it a position and returns straight away; the move turns up in the returned future.
+    // stop() aborts the search in progress (the node loop checks the flag, so it's quick); the future then completes
+    // with the best move of the last finished iteration, or -1 if there wasn't one yet.
+    // Don't mix submit() and findBestMove() on the same ChessAI; they share the search state.
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread t = new Thread(runnable, "skakbot-search");
+        t.setDaemon(true); // Closing the window shouldn't have to wait for a search.
+        return t;
+    });
+    // Each submitted search gets its own stop flag, so stopping one can never hit a search that's only queued behind it.
+    private volatile AtomicBoolean stopFlag = new AtomicBoolean();
+    private volatile AtomicBoolean lastSubmittedStop;
+    private volatile CompletableFuture<Integer> lastSubmitted = CompletableFuture.completedFuture(-1);
+
+    // remainingMs and incrementMs are the engine's own clock; moveNumber is the full-move number of the game.
+    // history and halfmoveClock are as for findBestMove(). The position isn't touched.
+    // Anything still running or queued is stopped first; there's only ever one position we care about.
+    // The future completes on the search thread, so the GUI has to get back onto the event thread itself.
+    public synchronized CompletableFuture<Integer> submit(long[] position, long[] history, int halfmoveClock, long remainingMs, long incrementMs, int moveNumber) {
+        long[] rootPosition = position.clone(); // The caller's arrays can change under us once we're on another thread.
+        long[] rootHistory = history.clone();
+        if (lastSubmittedStop != null) lastSubmittedStop.set(true);
+        AtomicBoolean stop = new AtomicBoolean();
+        lastSubmittedStop = stop;
+        lastSubmitted = CompletableFuture.supplyAsync(() -> {
+            if (stop.get()) return -1; // Stopped before it even got going.
+            return searchForGui(rootPosition, rootHistory, halfmoveClock, TimeManager.forClock(remainingMs, incrementMs, moveNumber), stop);
+        }, worker);
+        return lastSubmitted;
+    }
 
-        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
-            if (System.nanoTime() - start > timeLimit) break;
+    // Aborts the submitted search (running or queued). Returns straight away; use await() to wait for it to wind down.
+    public synchronized void stop() {
+        if (lastSubmittedStop != null) lastSubmittedStop.set(true);
+    }
 
-            // Apply ASPIRATION_MARGIN
-            int alpha = (depth == 1 ? Integer.MIN_VALUE : lastScore - ASPIRATION_MARGIN);
-            int beta  = (depth == 1 ? Integer.MAX_VALUE : lastScore + ASPIRATION_MARGIN);
+    // Blocks until the last submitted search is done and returns its move.
+    public int await() {
+        return lastSubmitted.join();
+    }
 
-            ScoredMove sm = minimax(state, depth, alpha, beta, isWhite, start, timeLimit, rootRepeats, depth);
-            if (sm == null) break;  // timed out
+    // Stops whatever's running, saves the TT snapshot if there is one, and lets the worker thread (and the parallel search's threads) go.
+    // Waits for all that, since the worker is a daemon thread and the JVM won't wait for it to finish writing the snapshot.
+    // The ChessAI can't be used after this.
+    public void shutdown() {
+        stop();
+        worker.execute(() -> { // After the search in progress, which may still be using the TT.
+            if (TT_SNAPSHOT != null) saveHash(Path.of(TT_SNAPSHOT));
+            if (parallelSearch != null) parallelSearch.close();
+            transpositionTable.close();
+        });
+        worker.shutdown();
+        try {
+            worker.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            // Default to +-∞ if ASPIRATION_MARGIN does not find anything
-            if (sm.score <= alpha || sm.score >= beta) {
-                sm = minimax(state, depth, Integer.MIN_VALUE, Integer.MAX_VALUE,
-                        isWhite, start, timeLimit, rootRepeats, depth);
-                if (sm == null) break;
+    private int searchForGui(long[] rootPosition, long[] rootHistory, int halfmoveClock, TimeManager tm, AtomicBoolean stop) {
+        // ensure our sliding‐piece tables are built once
+        ensureLookupTables();
+        Tablebases.ensureLoaded();
+        if (stop.get()) return -1; // The tables can take a few seconds the first time.
+
+        boardState  = rootPosition;
+        stopFlag    = stop;
+        timeManager = tm;
+        timeManager.start();
+        boolean isWhite = BitboardBoard.isWhiteToMove(rootPosition[15]);
+
+        // try the opening book first; a hit costs a few microseconds instead of a full search
+        int bestEnc = -1;
+        PolyglotBook openingBook = getBook();
+        if (openingBook != null) {
+            bestEnc = openingBook.findMove(boardState);
+            if (bestEnc != -1) {
+                System.out.println("Book move " + BitboardBoard.moveToString(bestEnc) + " found in " + timeManager.elapsedNanos() / 1000 + " µs");
+                return bestEnc;
+            }
+        }
+        OpeningTree openingTree = getTree();
+        if (openingTree != null) {
+            bestEnc = openingTree.findMove(boardState);
+            if (bestEnc != -1) {
+                System.out.println("Tree move " + BitboardBoard.moveToString(bestEnc) + " found in " + timeManager.elapsedNanos() / 1000 + " µs");
+                return bestEnc;
             }
+        }
 
-            bestDepth = depth;
-            lastScore = sm.score;
-            bestMove  = sm.move;
+        // run iterative minimax search with timer applied
+        bestEnc = search(boardState, isWhite, rootHistory, halfmoveClock);
+        if (stop.get()) System.out.println("Search stopped after " + timeManager.elapsedNanos() / 1_000_000 + " ms");
+        System.out.println("Selected move depth: " + lastSearchDepth);
+
+        // informational printout to devs to evaluate quality (happens only at the end, will not affect algoritmn speed)
+        System.out.println("Total moves evaluated: " + stats.getTotalLeafNodes());
+        long elapsedMs = Math.max(1, timeManager.elapsedNanos() / 1_000_000);
+        System.out.println("Evaluations per second: " + stats.getTotalLeafNodes() * 1000L / elapsedMs + " (" + evaluator.getName() + ")");
+        System.out.println("Cutoffs made: " + stats.getTotalCutoffs());
+        System.out.println("Aspiration re-searches: " + stats.getTotalFailHighs() + " fail high, " + stats.getTotalFailLows() + " fail low");
+        if (parallelSearch != null) {
+            System.out.println("Parallel search: " + THREADS + " threads, " + parallelSearch.getSplits() + " splits, " + parallelSearch.getAbortedBrothers() + " young brothers aborted");
+        }
+        for (SearchStatistics.Iteration it : stats.getIterations()) {
+            System.out.printf("  depth %2d%s: %,d nodes, %,d nps, %d ms, TT hits %.0f%%, first-move cutoffs %.0f%%, leaves %.0f%%%n",
+                    it.depth(), it.completed() ? "" : " (aborted)", it.nodes(), it.nodesPerSecond(), it.nanos() / 1_000_000,
+                    it.ttHitRate() * 100, it.firstMoveCutoffRate() * 100, it.leafNodeShare() * 100);
         }
+        System.out.printf("Effective branching factor: %.2f%n", stats.getEffectiveBranchingFactor());
+        System.out.println("Time used: " + timeManager.elapsedNanos() / 1_000_000 + " ms (soft " + timeManager.getSoftLimit() / 1_000_000 + " ms, hard " + timeManager.getHardLimit() / 1_000_000 + " ms)");
+        return bestEnc;
+    }
 
-        System.out.println("Selected move depth: " + bestDepth);
-        return bestMove;
+    // The same search without the thread, the GUI board or the opening book, for engine-vs-engine matches and other tools.
+    // The side to move is taken from the board, and the board is left as it was.
+    public int findBestMove(long[] state, TimeManager timeManager) {
+        return findBestMove(state, new long[0], 0, timeManager);
     }
 
-    private static class ScoredMove { final int move, score; ScoredMove(int m,int s){move=m;score=s;} }
-
-    private ScoredMove minimax(
-            long[]              state,
-            int                 depth,
-            int                 alpha,
-            int                 beta,
-            boolean             maxPlayer,
-            long                start,
-            long                timeLimit,
-            Map<Long,Integer>   rootRepeats,
-            int                 rootDepth
-    ) {
-        if (System.nanoTime() - start > timeLimit) return null;
-
-        if (depth == 0) {
-            totalMovesEvaluated++;
-            int stand = evaluator.simpleEvaluation(state);
-            return new ScoredMove(-1, stand);
-        }
-
-        TranspositionTableEntry ent = TRANSPOSITION_TABLE.get(currentHash);
-        if (ent != null && ent.depth >= depth) {
-            if (ent.flag == 0) return new ScoredMove(ent.bestMove, ent.value);
-            if (ent.flag == 1) alpha = Math.max(alpha, ent.value);
-            if (ent.flag == 2) beta  = Math.min(beta, ent.value);
-            if (alpha >= beta) {
-                cutoffsMade++;
-                return new ScoredMove(ent.bestMove, ent.value);
-            }
+    // history holds computeZobrist() of every earlier position in the game, oldest first; halfmoveClock is the number of plies
+    // since the last capture or pawn move. Together they let the search see repetitions of positions from before the root.
+    public int findBestMove(long[] state, long[] history, int halfmoveClock, TimeManager timeManager) {
+        ensureLookupTables();
+        Tablebases.ensureLoaded();
+
+        boardState = state.clone();
+        stopFlag = new AtomicBoolean(); // Nobody else can stop this one; the time manager decides.
+        this.timeManager = timeManager;
+        timeManager.start();
+        return search(boardState, BitboardBoard.isWhiteToMove(boardState[15]), history, halfmoveClock);
+    }
+
+    // Forgets everything the earlier searches left in the TT; the next search starts from scratch.
+    // Fine to call while a stopped search is still winding down: an entry it half-writes over the cleared table is just a miss.
+    public void clearHash() {
+        transpositionTable.clear();
+    }
+
+    // Writes the TT to a snapshot that -Dskakbot.ttSnapshot can start a later run with. shutdown() does this by itself.
+    public void saveHash(Path path) {
+        try {
+            long start = System.nanoTime();
+            transpositionTable.save(path, ENGINE_VERSION, evaluator.evalHash());
+            System.out.println("TT snapshot saved to " + path + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.out.println("Couldn't save the TT snapshot: " + e.getMessage());
         }
+    }
+
+    public void setCopyMake(boolean copyMake) {
+        searcher.setCopyMake(copyMake);
+    }
+
+    public int getLastSearchDepth() {
+        return lastSearchDepth;
+    }
+
+    public SearchStatistics getStatistics() {
+        return stats;
+    }
 
-        if (depth == rootDepth) {
-            rootRepeats.put(currentHash, rootRepeats.getOrDefault(currentHash,0) + 1);
+    private int search(long[] state, boolean isWhite, long[] history, int halfmoveClock) {
+        startSearch(state, history, halfmoveClock);
+        int move;
+        if (parallelSearch != null) {
+            move = parallelSearch.search(searcher, state, isWhite, halfmoveClock, timeManager, stopFlag, stats);
+            lastSearchDepth = parallelSearch.getLastDepth();
+        } else {
+            move = iterativeDeepeningSearch(state, isWhite, halfmoveClock);
         }
+        SearchTelemetry.get().publish(stats);
+        return move;
+    }
+
+    private void startSearch(long[] state, long[] history, int halfmoveClock) {
+        stats.startSearch();
+        transpositionTable.newSearch();
+        searcher.startSearch(state, history, halfmoveClock, timeManager, stopFlag);
+    }
 
-        int[] moves = BitboardBoard.getAllMoves(state, maxPlayer);
-        if (moves.length == 0) {
-            int mateScore = maxPlayer ? -MATE_SCORE : +MATE_SCORE;
-            return new ScoredMove(-1, mateScore);
+    // ###########################################################################
+    // MULTI-PV, for analysis: the best few root moves, each with its own score and principal variation.
+    // Each depth searches the root once per line, leaving out the moves already found, so the second search finds
+    // the second best move and so on. All of them share the TT, which is also where the PVs are read back from.
+
+    // score is from white's point of view, like everywhere else in the search; pv[0] is the root move.
+    public record PvLine(int depth, int score, int[] pv) {
+        public int move() {
+            return pv[0];
         }
 
-        int bestScore = maxPlayer ? Integer.MIN_VALUE : Integer.MAX_VALUE;
-        int bestMove  = -1;
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("depth " + depth + " score " + score + " pv");
+            for (int m : pv) sb.append(' ').append(BitboardBoard.moveToString(m));
+            return sb.toString();
+        }
+    }
 
-        for (int m : moves) {
-            // make the move
-            long oldHash = currentHash;
-            BitboardBoard.makeOrUndoMove(state, m);
-            currentHash = computeZobrist(state);
+    // Returns the lines of the deepest depth that finished, best first for the side to move (fewer if there aren't that many legal moves).
+    // onDepth, if not null, gets the same thing after every finished depth. history and halfmoveClock are as for findBestMove().
+    public List<PvLine> analyse(long[] state, long[] history, int halfmoveClock, int lines, TimeManager timeManager, Consumer<List<PvLine>> onDepth) {
+        ensureLookupTables();
+        Tablebases.ensureLoaded();
+
+        boardState = state.clone();
+        stopFlag = new AtomicBoolean();
+        this.timeManager = timeManager;
+        timeManager.start();
+        boolean isWhite = BitboardBoard.isWhiteToMove(boardState[15]);
+        startSearch(boardState, history, halfmoveClock);
+        evaluator.reset(boardState);
+
+        List<PvLine> result = List.of();
+        int bestDepth = 0;
+        for (int depth = 1; depth <= Math.min(MAX_DEPTH, timeManager.getDepthLimit()); depth++) {
+            if (depth > 1 && !timeManager.canStartIteration()) break;
+
+            // No aspiration windows here; the second and later lines can be anywhere below the first.
+            searcher.startIteration(depth);
+            List<PvLine> found = new ArrayList<>();
+            boolean aborted = false;
+            searcher.clearExcludedRootMoves();
+            while (found.size() < lines) {
+                Searcher.ScoredMove sm = searcher.minimax(boardState, depth, -INFINITY, INFINITY, isWhite, 0, halfmoveClock, 0, -1);
+                if (sm == null) { aborted = true; break; }
+                if (sm.move == -1) break; // Every legal move has a line already.
+                found.add(new PvLine(depth, sm.score, principalVariation(boardState, sm.move, depth)));
+                searcher.excludeRootMove(sm.move);
+            }
+            searcher.clearExcludedRootMoves();
 
-            // search the child
-            ScoredMove child = minimax(
-                    state, depth-1, alpha, beta,
-                    !maxPlayer, start, timeLimit,
-                    rootRepeats, rootDepth
-            );
+            if (aborted || found.isEmpty()) {
+                stats.finishIteration(false, 0, -1);
+                break;
+            }
+            // The TT has moved on by the time the later lines are searched, so now and then one comes out a little better than an earlier one.
+            found.sort(Comparator.comparingInt(line -> isWhite ? -line.score() : line.score()));
+            PvLine best = found.get(0);
+            stats.finishIteration(true, best.score(), best.move());
 
-            // undo the move
-            BitboardBoard.makeOrUndoMove(state, m);
-            currentHash = oldHash;
+            result = List.copyOf(found);
+            bestDepth = depth;
+            if (onDepth != null) onDepth.accept(result);
+            timeManager.iterationFinished(best.move(), isWhite ? best.score() : -best.score());
+        }
 
-            if (child == null) return null;  // timeout
+        lastSearchDepth = bestDepth;
+        SearchTelemetry.get().publish(stats);
+        return result;
+    }
 
-            int score = child.score;
-            if (maxPlayer ? (score > bestScore) : (score < bestScore)) {
-                bestScore = score;
-                bestMove  = m;
+    // Follows the TT's best moves from the root move on, as long as they're legal and we haven't gone deeper than was searched.
+    private int[] principalVariation(long[] state, int rootMove, int depth) {
+        long[] position = state.clone();
+        int[] pv = new int[depth];
+        int length = 0;
+        int move = rootMove;
+        while (move != -1 && length < depth) {
+            pv[length++] = move;
+            BitboardBoard.makeOrUndoMove(position, move);
+            int ttMove = TranspositionTable.bestMove(transpositionTable.probe(computeZobrist(position)));
+            move = -1;
+            if (ttMove != -1) {
+                for (int legal : BitboardBoard.getLegalMoves(position, BitboardBoard.isWhiteToMove(position[15]))) {
+                    if (BitboardBoard.toCompactMove(legal) == ttMove) { move = legal; break; }
+                }
             }
-            if (maxPlayer) alpha = Math.max(alpha, score);
-            else          beta  = Math.min(beta, score);
-            if (alpha >= beta) break;
         }
+        return Arrays.copyOf(pv, length);
+    }
+
+    private int iterativeDeepeningSearch(long[] state, boolean isWhite, int halfmoveClock) {
+        evaluator.reset(state);
+        int lastScore = 0, bestMove = -1;
+        int bestDepth = 0;
+
+        for (int depth = 1; depth <= Math.min(MAX_DEPTH, timeManager.getDepthLimit()); depth++) {
+            // Always finish depth 1 so there's a move to play, then let the time manager decide.
+            if (depth > 1 && !timeManager.canStartIteration()) break;
+
+            // Start with a narrow window around the last score. Depth 1 has nothing to centre on, and mate scores jump around
+            // by whole mates from one depth to the next, so those get the full window straight away.
+            int delta = ASPIRATION_WINDOW;
+            boolean narrow = depth > 1 && Math.abs(lastScore) < MATE_BOUND;
+            int alpha = narrow ? Math.max(lastScore - delta, -INFINITY) : -INFINITY;
+            int beta  = narrow ? Math.min(lastScore + delta, INFINITY) : INFINITY;
+
+            SearchEvents.Iteration iterationEvent = new SearchEvents.Iteration();
+            iterationEvent.begin();
+            searcher.startIteration(depth);
+            Searcher.ScoredMove sm;
+            SearchEvents.AspirationResearch researchEvent = null;
+            while (true) {
+                sm = searcher.minimax(state, depth, alpha, beta, isWhite, 0, halfmoveClock, 0, -1);
+                if (researchEvent != null) researchEvent.commit();
+                if (sm == null || (sm.score > alpha && sm.score < beta)) break;
+
+                // Outside the window: widen it on the side that failed only, twice as far each time,
+                // so one surprise doesn't throw us straight back to a full-width search. ±INFINITY is the most it can get.
+                boolean failHigh = sm.score >= beta;
+                stats.aspirationFail(failHigh);
+                researchEvent = new SearchEvents.AspirationResearch();
+                researchEvent.begin();
+                researchEvent.depth = depth;
+                researchEvent.alpha = alpha;
+                researchEvent.beta = beta;
+                researchEvent.score = sm.score;
+                researchEvent.failHigh = failHigh;
+
+                delta *= 2;
+                if (failHigh) beta  = Math.min(sm.score + delta, INFINITY);
+                else          alpha = Math.max(sm.score - delta, -INFINITY);
+            }
+            if (sm == null) {  // timed out or stopped
+                finishIteration(iterationEvent, false, lastScore, bestMove);
+                break;
+            }
+            finishIteration(iterationEvent, true, sm.score, sm.move);
 
-        // store into TT
-        TranspositionTableEntry ne = new TranspositionTableEntry();
-        ne.depth    = depth;
-        ne.value    = bestScore;
-        ne.bestMove = bestMove;
-        ne.flag     = ( bestScore <= alpha ? 2 :
-                bestScore >= beta  ? 1 : 0 );
-        TRANSPOSITION_TABLE.put(currentHash, ne);
+            bestDepth = depth;
+            lastScore = sm.score;
+            bestMove  = sm.move;
 
-        return new ScoredMove(bestMove, bestScore);
+            // The time manager wants the score from our side's point of view.
+            timeManager.iterationFinished(bestMove, isWhite ? lastScore : -lastScore);
+        }
+
+        lastSearchDepth = bestDepth;
+        return bestMove;
     }
 
-    private long computeZobrist(long[] state) {
-        long h = 0;
-        for (int i = 0; i < 16; i++) {
-            h ^= state[i] * ZOBRIST_KEYS[i];
+    private void finishIteration(SearchEvents.Iteration event, boolean completed, int score, int move) {
+        SearchStatistics.Iteration it = stats.finishIteration(completed, score, move);
+        if (event.shouldCommit()) {
+            event.depth = it.depth();
+            event.completed = completed;
+            event.nodes = it.nodes();
+            event.score = score;
+            event.bestMove = move == -1 ? null : BitboardBoard.moveToString(move);
+            event.commit();
         }
-        return h;
+    }
+
+    // Public and static so the GUI and other tools can build the game history that findBestMove() and submit() take.
+    // The hash itself lives in BitboardBoard, so the packages (the opening tree) can get at it too.
+    public static long computeZobrist(long[] state) {
+        return BitboardBoard.zobristHash(state);
     }
 }
\ No newline at end of file
@@ -1,17 +1,15 @@
-import Board.Board;
-import Pieces.Bishop;
-import Pieces.Knight;
-import Pieces.King;
-import Pieces.Pawn;
-import Pieces.Piece;
-import Pieces.Queen;
-import Pieces.Rook;
+import Board.BitboardBoard;
+import Util.PieceImageLoader;
 
 import javax.swing.*;
 import javax.swing.border.Border;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 public class ChessGUI {
     private JFrame frame;
@@ -21,8 +19,18 @@ public class ChessGUI {
 
     private JButton[][] buttons = new JButton[8][8];
     private JPanel gamePanel;
-    private Board boardModel;
+    // The one and only game position; the engine searches a copy of it, and the GUI just reads it.
+    // GUI rows run from rank 8 (row 0) down to rank 1 (row 7), so square = (row * 8 + col) ^ 56.
+    private long[] position;
+    private int[] legalMoves; // For the side to move, recomputed after every move.
+    // legalTargets[from] = bitboard of every square the piece on 'from' can legally go to. Built from legalMoves once per turn,
+    // so selecting a piece and validating a click are a single lookup no matter what's on the board.
+    private final long[] legalTargets = new long[64];
     private boolean whiteTurn;
+    // Hashes of every earlier position in the game and the plies since the last capture or pawn move, so the engine can see repetitions.
+    private long[] gameHistory = new long[64];
+    private int gameHistoryLength;
+    private int halfmoveClock;
     private boolean gameOver;
     private int selectedRow, selectedCol;
 
@@ -30,8 +38,18 @@ public class ChessGUI {
     private int iconSize = 64;
     private final Map<String, ImageIcon> iconCache = new HashMap<>();
 
+    private static final String[] PIECE_NAMES = {"pawn", "knight", "bishop", "rook", "queen", "king"};
+
     private int checkKingRow = -1, checkKingCol = -1;
     private ChessAI ai = new ChessAI();
+    // Bumped whenever the game on the board is thrown away, so a search that was still running for it can't play into the next one.
+    private int gameId;
+
+    // The engine plays on a clock so it can budget its thinking time; the human doesn't.
+    private static final long AI_START_TIME_MS = 5 * 60 * 1000;
+    private static final long AI_INCREMENT_MS = 3000;
+    private long aiClockMs;
+    private int fullMoveNumber;
 
     public ChessGUI() {
         SwingUtilities.invokeLater(this::createAndShowGUI);
@@ -40,6 +58,12 @@ public class ChessGUI {
     private void createAndShowGUI() {
         frame = new JFrame("Skakspil");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                ai.shutdown(); // Before EXIT_ON_CLOSE kicks in, so the TT snapshot (-Dskakbot.ttSnapshot) gets written.
+            }
+        });
         frame.setMinimumSize(new Dimension(600, 600));
         frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
         frame.setLayout(new BorderLayout());
@@ -116,10 +140,17 @@ public class ChessGUI {
     }
 
     private void startNewGame() {
-        boardModel = new Board();
+        abandonGame();
+        ai.clearHash(); // Nothing the last game's searches left behind is any use now.
+        position = new BitboardBoard().getFullBoard();
         whiteTurn = true;
+        updateLegalMoves();
         gameOver = false;
         selectedRow = selectedCol = -1;
+        aiClockMs = AI_START_TIME_MS;
+        fullMoveNumber = 1;
+        gameHistoryLength = 0;
+        halfmoveClock = 0;
         iconSize = Math.min(gamePanel.getWidth(), gamePanel.getHeight()) / 8;
         iconCache.clear();
         checkKingRow = checkKingCol = -1;
@@ -127,22 +158,39 @@ public class ChessGUI {
         ((CardLayout) cards.getLayout()).show(cards, GAME);
         frame.setTitle("Skakspil – " + (whiteTurn ? "Hvids" : "Sorts") + " tur");
         if (humanIsWhite != null && !humanIsWhite) {
-            triggerWhiteAIMove();
+            triggerAIMove();
         }
     }
 
     private void showMenu() {
+        abandonGame();
         ((CardLayout) cards.getLayout()).show(cards, MENU);
         frame.setTitle("Skakspil");
     }
 
+    private void updateLegalMoves() {
+        legalMoves = BitboardBoard.getLegalMoves(position, whiteTurn);
+        Arrays.fill(legalTargets, 0L);
+        for (int m : legalMoves) {
+            legalTargets[BitboardBoard.getFrom(m)] |= 1L << BitboardBoard.getTo(m);
+        }
+    }
+
+    private static int toSquare(int row, int col) {
+        return (row * 8 + col) ^ 56;
+    }
+
+    private boolean isOwnPiece(int row, int col) {
+        return (position[whiteTurn ? 1 : 2] & (1L << toSquare(row, col))) != 0L;
+    }
+
     private void handleClick(int row, int col) {
-        if (gameOver) return;
+        if (gameOver || whiteTurn != humanIsWhite) return; // Hands off while the engine is thinking.
         clearHighlights();
 
-        if (selectedRow < 0) {
-            Piece clicked = boardModel.board[row][col];
-            if (clicked != null && clicked.isWhite() == whiteTurn) {
+        if (selectedRow < 0 || isOwnPiece(row, col)) {
+            selectedRow = selectedCol = -1;
+            if (isOwnPiece(row, col)) {
                 selectedRow = row;
                 selectedCol = col;
                 highlightMoves(row, col);
@@ -150,109 +198,56 @@ public class ChessGUI {
             return;
         }
 
-        Piece movingPiece = boardModel.board[selectedRow][selectedCol];
-        if (movingPiece == null || movingPiece.isWhite() != whiteTurn) {
-            selectedRow = selectedCol = -1;
+        int from = toSquare(selectedRow, selectedCol), to = toSquare(row, col);
+        selectedRow = selectedCol = -1;
+        if ((legalTargets[from] & (1L << to)) == 0L) {
+            buttons[row][col].setBorder(BorderFactory.createLineBorder(Color.RED, 3));
             return;
         }
 
-        boolean isCastling = movingPiece instanceof King
-                && row == selectedRow
-                && Math.abs(col - selectedCol) == 2;
-        if (isCastling) {
-            int direction = (col - selectedCol) > 0 ? 1 : -1;
-            if (!boardModel.canCastle(whiteTurn, direction)) {
-                buttons[row][col].setBorder(BorderFactory.createLineBorder(Color.RED, 3));
-                selectedRow = selectedCol = -1;
-                return;
-            }
-            boardModel.board[row][col] = movingPiece;
-            boardModel.board[selectedRow][selectedCol] = null;
-            movingPiece.move(row, col);
-
-            int rookFrom = (direction == 1 ? 7 : 0);
-            int rookTo   = selectedCol + direction;
-            Piece rook   = boardModel.board[row][rookFrom];
-            boardModel.board[row][rookTo]   = rook;
-            boardModel.board[row][rookFrom] = null;
-            rook.move(row, rookTo);
-
-            whiteTurn = !whiteTurn;
-            updateBoard();
-            frame.setTitle("Skakspil – " + (whiteTurn ? "Hvids" : "Sorts") + " tur");
-            selectedRow = selectedCol = -1;
-            if (whiteTurn != humanIsWhite && !gameOver) {
-                if (whiteTurn) triggerWhiteAIMove(); else triggerBlackAIMove();
+        // Only now do we need the actual move; a pawn reaching the last rank has four of them, one per promotion piece.
+        int move = -1;
+        for (int m : legalMoves) {
+            if (BitboardBoard.getFrom(m) == from && BitboardBoard.getTo(m) == to) {
+                move = m;
+                break;
             }
-            return;
-        }
-        if (!movingPiece.isValidMove(row, col, boardModel.board)) {
-            selectedRow = selectedCol = -1;
-            return;
         }
-
-        int origRow = selectedRow, origCol = selectedCol;
-        Piece target = boardModel.board[row][col];
-        boardModel.board[row][col] = movingPiece;
-        boardModel.board[origRow][origCol] = null;
-        movingPiece.setPosition(row, col);
-
-        if (boardModel.isInCheck(whiteTurn)) {
-            boardModel.board[origRow][origCol] = movingPiece;
-            boardModel.board[row][col] = target;
-            movingPiece.setPosition(origRow, origCol);
-            buttons[row][col].setBorder(BorderFactory.createLineBorder(Color.RED, 3));
-            selectedRow = selectedCol = -1;
-            return;
+        if (BitboardBoard.getPromotion(move) != 0) {
+            move = choosePromotion(from, to);
         }
+        applyMove(move);
+    }
 
-        movingPiece.move(row, col);
-        if (movingPiece instanceof Pawn && (row == 0 || row == 7)) {
-            promotePawn(row, col, movingPiece.isWhite());
-        }
+    // Plays a move on the real position, for either side, and hands the turn over.
+    private void applyMove(int move) {
+        if (gameHistoryLength == gameHistory.length) gameHistory = Arrays.copyOf(gameHistory, gameHistoryLength * 2);
+        gameHistory[gameHistoryLength++] = ChessAI.computeZobrist(position);
+        boolean irreversible = BitboardBoard.getPiece(move) == 1 || BitboardBoard.getCaptured(move) != 0;
+        halfmoveClock = irreversible ? 0 : halfmoveClock + 1;
 
+        BitboardBoard.makeOrUndoMove(position, move);
+        boolean moverWasWhite = whiteTurn;
         whiteTurn = !whiteTurn;
-        frame.setTitle("Skakspil – " + (whiteTurn ? "Hvids" : "Sorts") + " tur");
-        updateSquare(origRow, origCol);
-        updateSquare(row, col);
+        if (!moverWasWhite) fullMoveNumber++;
+        updateLegalMoves();
 
-        if (boardModel.isInCheck(whiteTurn)) {
-            handleCheckStatus(whiteTurn);
-        } else {
-            checkKingRow = checkKingCol = -1;
-        }
+        frame.setTitle("Skakspil – " + (whiteTurn ? "Hvids" : "Sorts") + " tur");
+        updateBoard();
+        updateCheckStatus();
 
-        selectedRow = selectedCol = -1;
         if (whiteTurn != humanIsWhite && !gameOver) {
-            if (whiteTurn) triggerWhiteAIMove(); else triggerBlackAIMove();
+            triggerAIMove();
         }
     }
 
     private void highlightMoves(int fromRow, int fromCol) {
-        Piece piece = boardModel.board[fromRow][fromCol];
-        Border validHighlight   = BorderFactory.createLineBorder(Color.YELLOW, 3);
-        Border invalidHighlight = BorderFactory.createLineBorder(Color.RED, 3);
-
-        for (int r = 0; r < 8; r++) {
-            for (int c = 0; c < 8; c++) {
-                if (!piece.isValidMove(r, c, boardModel.board)) continue;
-                Piece target = boardModel.board[r][c];
-                boardModel.board[fromRow][fromCol] = null;
-                boardModel.board[r][c] = piece;
-                piece.setPosition(r, c);
-                boolean inCheck = boardModel.isInCheck(piece.isWhite());
-                boardModel.board[fromRow][fromCol] = piece;
-                boardModel.board[r][c] = target;
-                piece.setPosition(fromRow, fromCol);
-                buttons[r][c].setBorder(inCheck ? invalidHighlight : validHighlight);
-            }
-        }
-        if (piece instanceof King) {
-            boolean white = piece.isWhite();
-            if (boardModel.canCastle(white, +1))
-                buttons[fromRow][fromCol + 2].setBorder(validHighlight);
-            if (boardModel.canCastle(white, -1))
-                buttons[fromRow][fromCol - 2].setBorder(validHighlight);
+        Border validHighlight = BorderFactory.createLineBorder(Color.YELLOW, 3);
+        long targets = legalTargets[toSquare(fromRow, fromCol)];
+        while (targets != 0L) {
+            int to = Long.numberOfTrailingZeros(targets) ^ 56;
+            buttons[to / 8][to % 8].setBorder(validHighlight);
+            targets &= targets - 1;
         }
     }
 
@@ -264,7 +259,7 @@ public class ChessGUI {
         }
     }
 
-    private void promotePawn(int row, int col, boolean isWhite) {
+    private int choosePromotion(int from, int to) {
         String[] options = {"Dronning", "Tårn", "Løber", "Springer"};
         int choice = JOptionPane.showOptionDialog(
                 frame,
@@ -274,65 +269,83 @@ public class ChessGUI {
                 JOptionPane.QUESTION_MESSAGE,
                 null, options, options[0]);
 
-        Piece newPiece;
+        int promotion;
         switch (choice) {
-            case 1: newPiece = new Rook(isWhite, row, col);   break;
-            case 2: newPiece = new Bishop(isWhite, row, col); break;
-            case 3: newPiece = new Knight(isWhite, row, col); break;
-            default: newPiece = new Queen(isWhite, row, col); break;
+            case 1: promotion = 4; break; // Rook
+            case 2: promotion = 3; break; // Bishop
+            case 3: promotion = 2; break; // Knight
+            default: promotion = 5; break; // Queen
+        }
+        for (int m : legalMoves) {
+            if (BitboardBoard.getFrom(m) == from && BitboardBoard.getTo(m) == to && BitboardBoard.getPromotion(m) == promotion) return m;
         }
-        boardModel.board[row][col] = newPiece;
-        updateSquare(row, col);
+        return -1;
     }
 
-    private void handleCheckStatus(boolean currentPlayerWhite) {
-        int kingR = -1, kingC = -1;
-        for (int r = 0; r < 8; r++) {
-            for (int c = 0; c < 8; c++) {
-                Piece p = boardModel.board[r][c];
-                if (p instanceof King && p.isWhite() == currentPlayerWhite) {
-                    kingR = r; kingC = c; break;
-                }
-            }
-            if (kingR != -1) break;
+    // Check, checkmate and stalemate, all straight from the move generator.
+    private void updateCheckStatus() {
+        boolean inCheck = BitboardBoard.isInCheck(position, whiteTurn);
+        if (!inCheck) {
+            checkKingRow = checkKingCol = -1;
+        } else {
+            int kingSquare = Long.numberOfTrailingZeros(position[whiteTurn ? 8 : 14]) ^ 56;
+            checkKingRow = kingSquare / 8;
+            checkKingCol = kingSquare % 8;
+            buttons[checkKingRow][checkKingCol].setBorder(BorderFactory.createLineBorder(Color.RED, 4));
         }
-        checkKingRow = kingR;
-        checkKingCol = kingC;
-        buttons[kingR][kingC].setBorder(BorderFactory.createLineBorder(Color.RED, 4));
-
-        if (boardModel.isCheckmate(currentPlayerWhite)) {
-            buttons[kingR][kingC].setBorder(BorderFactory.createLineBorder(Color.RED, 6));
-            gameOver = true;
-            frame.setTitle("Skakspil – " + (currentPlayerWhite ? "Hvid" : "Sort") + " er skakmat");
-            int resp = JOptionPane.showConfirmDialog(frame,
-                    (currentPlayerWhite ? "Hvid" : "Sort") + " er skakmat!\nVil du vende tilbage til menuen?",
-                    "Skakmat!", JOptionPane.YES_NO_OPTION);
-            if (resp == JOptionPane.YES_OPTION) showMenu();
+        if (legalMoves.length > 0) return;
+
+        gameOver = true;
+        String message;
+        if (inCheck) {
+            buttons[checkKingRow][checkKingCol].setBorder(BorderFactory.createLineBorder(Color.RED, 6));
+            frame.setTitle("Skakspil – " + (whiteTurn ? "Hvid" : "Sort") + " er skakmat");
+            message = (whiteTurn ? "Hvid" : "Sort") + " er skakmat!";
+        } else {
+            frame.setTitle("Skakspil – Remis");
+            message = "Pat – spillet er remis!";
         }
+        int resp = JOptionPane.showConfirmDialog(frame,
+                message + "\nVil du vende tilbage til menuen?",
+                inCheck ? "Skakmat!" : "Remis", JOptionPane.YES_NO_OPTION);
+        if (resp == JOptionPane.YES_OPTION) showMenu();
     }
 
-    public void triggerBlackAIMove() {
-        ai.startSearchThread(boardModel, false, () -> {
-            SwingUtilities.invokeLater(() -> {
-                updateBoard();
-                whiteTurn = true;
-                frame.setTitle("Skakspil – Hvids tur");
-                if (boardModel.isInCheck(true)) handleCheckStatus(true);
-                else { checkKingRow = checkKingCol = -1; }
-            });
-        });
+    private void triggerAIMove() {
+        long searchStart = System.currentTimeMillis();
+        int searchGame = gameId;
+        ai.submit(position, Arrays.copyOf(gameHistory, gameHistoryLength), halfmoveClock, aiClockMs, AI_INCREMENT_MS, fullMoveNumber)
+                .whenComplete((move, error) -> SwingUtilities.invokeLater(() -> {
+                    if (searchGame != gameId) return; // The game it was searching for is gone.
+                    if (error != null) {
+                        engineFailed(error);
+                        return;
+                    }
+                    updateAIClock(searchStart);
+                    if (move != -1 && !gameOver) applyMove(move);
+                }));
     }
 
-    public void triggerWhiteAIMove() {
-        ai.startSearchThread(boardModel, true, () -> {
-            SwingUtilities.invokeLater(() -> {
-                updateBoard();
-                whiteTurn = false;
-                frame.setTitle("Skakspil – Sorts tur");
-                if (boardModel.isInCheck(false)) handleCheckStatus(false);
-                else { checkKingRow = checkKingCol = -1; }
-            });
-        });
+    // Without this a crash in the search just leaves the human waiting for a move that never comes.
+    private void engineFailed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        cause.printStackTrace();
+        gameOver = true;
+        frame.setTitle("Skakspil – Motorfejl");
+        int resp = JOptionPane.showConfirmDialog(frame,
+                "Motoren fejlede: " + cause + "\nVil du vende tilbage til menuen?",
+                "Fejl", JOptionPane.YES_NO_OPTION, JOptionPane.ERROR_MESSAGE);
+        if (resp == JOptionPane.YES_OPTION) showMenu();
+    }
+
+    // Stops the engine straight away instead of letting it think about a game nobody's playing any more.
+    private void abandonGame() {
+        gameId++;
+        ai.stop();
+    }
+
+    private void updateAIClock(long searchStart) {
+        aiClockMs = Math.max(0, aiClockMs - (System.currentTimeMillis() - searchStart)) + AI_INCREMENT_MS;
     }
 
     private void updateBoard() {
@@ -344,13 +357,17 @@ public class ChessGUI {
     }
 
     private void updateSquare(int r, int c) {
-        Piece piece = boardModel.board[r][c];
+        long mask = 1L << toSquare(r, c);
         JButton btn = buttons[r][c];
-        if (piece != null) {
-            String key = piece.getClass().getSimpleName() + "-" + piece.isWhite() + "-" + iconSize;
+        int index = 3;
+        while (index < 15 && (position[index] & mask) == 0L) index++;
+        if (index < 15) {
+            boolean white = index < 9;
+            String name = PIECE_NAMES[white ? index - 3 : index - 9];
+            String key = name + "-" + white + "-" + iconSize;
             ImageIcon scaledIcon = iconCache.get(key);
             if (scaledIcon == null) {
-                ImageIcon raw = piece.getIcon();
+                ImageIcon raw = PieceImageLoader.getPieceIcon(name, white);
                 Image scaled = raw.getImage().getScaledInstance(iconSize, iconSize, Image.SCALE_SMOOTH);
                 scaledIcon = new ImageIcon(scaled);
                 iconCache.put(key, scaledIcon);
@@ -361,10 +378,15 @@ public class ChessGUI {
             btn.setIcon(null);
             btn.setText("");
         }
-        if (r == checkKingRow && c == checkKingCol && !boardModel.isInCheck(whiteTurn)) btn.setBorder(null);
+        if (r == checkKingRow && c == checkKingCol && !BitboardBoard.isInCheck(position, whiteTurn)) btn.setBorder(null);
     }
 
+    // 'ChessGUI bench [depth <plies> | nodes <n>]' runs Bench instead of opening the window.
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("bench")) {
+            Bench.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new ChessGUI();
     }
 }
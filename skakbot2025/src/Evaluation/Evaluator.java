@@ -0,0 +1,39 @@
+package Evaluation;
+
+public interface Evaluator {
+
+    // Anything the search can use to score a position. Scores are in centipawns from white's point of view,
+    // since that's what ChessAI's minimax expects.
+    int evaluate(long[] board);
+
+    // The same, with the attack maps the search has already worked out for this position (one per colour, as BitboardBoard.getAllAttacks()).
+    // Evaluators that don't look at attacks just ignore them.
+    default int evaluate(long[] board, long[] whiteAttacks, long[] blackAttacks) {
+        return evaluate(board);
+    }
+
+    // Incremental evaluators (NNUE) keep state that has to follow the search up and down the tree.
+    // reset() is called once with the root position, makeMove() just *before* a move is made, and undoMove() just *after* it's undone.
+    // Stateless evaluators can ignore all three.
+    default void reset(long[] board) {}
+
+    default void makeMove(long[] board, int move) {}
+
+    default void undoMove(long[] board, int move) {}
+
+    // An evaluator for another search thread, since the incremental state can only follow one search at a time.
+    // Stateless evaluators can just hand out themselves; NNUE shares the weights but gets its own accumulators.
+    default Evaluator copy() {
+        return this;
+    }
+
+    // Stands for everything the scores depend on, for TT snapshots: a snapshot is only loaded by an evaluator with the same hash,
+    // since the scores stored in it would be wrong for any other. Evaluators with weights should hash those in.
+    default long evalHash() {
+        return getName().hashCode();
+    }
+
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,237 @@
+package Evaluation;
+
+import Board.BitboardBoard;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class NNUEEvaluation implements Evaluator {
+
+    // An 'efficiently updatable' neural network: 768 inputs -> N hidden (once per perspective) -> 1 output.
+    // The inputs are one per (colour, piece type, square), so a position only ever has up to 32 of them switched on,
+    // and a move only switches two to four of them. Instead of recomputing the hidden layer from scratch at every node,
+    // we keep it (the 'accumulator') and just add/subtract the weight rows of the features that changed.
+    // The accumulators live on a stack indexed by ply, so undoing a move is just stepping back down the stack.
+
+    // Everything is quantised to 16-bit integers so the Vector API can chew through 16 (AVX2) or 32 (AVX-512) lanes at a time.
+    // Needs '--add-modules jdk.incubator.vector' both when compiling and when running.
+
+    // Weights file layout, all little-endian:
+    // int magic "SKNN", int version, int hidden size N,
+    // short[768 * N] feature weights (all N weights for feature 0, then feature 1, ...),
+    // short[N] feature biases, short[2 * N] output weights (side to move first), int output bias.
+
+    private static final int MAGIC = 0x4E4E4B53; // "SKNN" read as a little-endian int.
+    private static final int VERSION = 1;
+    private static final int FEATURES = 768;
+    private static final int MAX_PLY = 128;
+
+    // The hidden layer is clipped to [0, QA] before the output layer, and the output weights are scaled by QB.
+    // Keeping |output weight| <= 127 means clipped activation * weight always fits in a short, so the multiply can stay 16-bit.
+    private static final int QA = 255;
+    private static final int QB = 64;
+    private static final int EVAL_SCALE = 400;
+
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = SHORTS.withLanes(int.class);
+
+    private final int hidden;
+    private final short[] featureWeights;
+    private final short[] featureBias;
+    private final short[] outputWeights;
+    private final int outputBias;
+
+    // [ply][perspective][hidden], flattened. Perspective 0 is white, 1 is black.
+    private final short[] accumulators;
+    private int ply = 0;
+
+    private NNUEEvaluation(int hidden, short[] featureWeights, short[] featureBias, short[] outputWeights, int outputBias) {
+        this.hidden = hidden;
+        this.featureWeights = featureWeights;
+        this.featureBias = featureBias;
+        this.outputWeights = outputWeights;
+        this.outputBias = outputBias;
+        this.accumulators = new short[(MAX_PLY + 1) * 2 * hidden];
+    }
+
+    public static NNUEEvaluation load(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not an NNUE weights file (or the wrong version): " + path);
+        }
+        int hidden = buffer.getInt();
+        if (hidden <= 0 || buffer.remaining() != 2L * (FEATURES * hidden + hidden + 2 * hidden) + 4) {
+            throw new IOException("NNUE weights file has the wrong size for " + hidden + " hidden neurons: " + path);
+        }
+
+        short[] featureWeights = new short[FEATURES * hidden];
+        short[] featureBias = new short[hidden];
+        short[] outputWeights = new short[2 * hidden];
+        buffer.asShortBuffer().get(featureWeights);
+        buffer.position(buffer.position() + 2 * featureWeights.length);
+        buffer.asShortBuffer().get(featureBias);
+        buffer.position(buffer.position() + 2 * featureBias.length);
+        buffer.asShortBuffer().get(outputWeights);
+        buffer.position(buffer.position() + 2 * outputWeights.length);
+        int outputBias = buffer.getInt();
+
+        for (short w : outputWeights) {
+            if (w > 127 || w < -128) throw new IOException("NNUE output weights must fit in 8 bits, got " + w);
+        }
+        return new NNUEEvaluation(hidden, featureWeights, featureBias, outputWeights, outputBias);
+    }
+
+    @Override
+    public Evaluator copy() {
+        return new NNUEEvaluation(hidden, featureWeights, featureBias, outputWeights, outputBias);
+    }
+
+    // Every weight of the network, so a retrained one doesn't load the TT snapshots of the old one.
+    @Override
+    public long evalHash() {
+        long hash = hidden;
+        for (short w : featureWeights) hash = hash * 31 + w;
+        for (short w : featureBias) hash = hash * 31 + w;
+        for (short w : outputWeights) hash = hash * 31 + w;
+        return hash * 31 + outputBias;
+    }
+
+    @Override
+    public String getName() {
+        return "NNUE (" + hidden + " hidden, " + SHORTS.length() + " lanes)";
+    }
+
+    // ###########################################################################
+    // ACCUMULATOR UPDATES.
+
+    // The feature index of a piece as seen by one side. Black sees the board flipped, with its own pieces as 'ours'.
+    private static int featureIndex(int perspective, boolean whitePiece, int type, int square) {
+        boolean own = whitePiece == (perspective == 0);
+        int relativeSquare = perspective == 0 ? square : square ^ 56;
+        return (own ? 0 : 384) + (type - 1) * 64 + relativeSquare;
+    }
+
+    @Override
+    public void reset(long[] board) {
+        ply = 0;
+        for (int perspective = 0; perspective < 2; perspective++) {
+            int offset = perspective * hidden;
+            System.arraycopy(featureBias, 0, accumulators, offset, hidden);
+            for (int i = 3; i < 15; i++) {
+                boolean white = i < 9;
+                int type = white ? i - 2 : i - 8;
+                long pieces = board[i];
+                while (pieces != 0L) {
+                    add(offset, featureIndex(perspective, white, type, Long.numberOfTrailingZeros(pieces)));
+                    pieces &= pieces - 1;
+                }
+            }
+        }
+    }
+
+    // Everything we need is in the encoded move itself, so the board isn't even looked at.
+    @Override
+    public void makeMove(long[] board, int move) {
+        int from = BitboardBoard.getFrom(move);
+        int to = BitboardBoard.getTo(move);
+        int piece = BitboardBoard.getPiece(move);
+        boolean white = BitboardBoard.isWhite(move);
+        int captured = BitboardBoard.getCaptured(move);
+        int promotion = BitboardBoard.getPromotion(move);
+
+        int parent = ply * 2 * hidden;
+        ply++;
+        int child = ply * 2 * hidden;
+        System.arraycopy(accumulators, parent, accumulators, child, 2 * hidden);
+
+        for (int perspective = 0; perspective < 2; perspective++) {
+            int offset = child + perspective * hidden;
+            sub(offset, featureIndex(perspective, white, piece, from));
+            add(offset, featureIndex(perspective, white, promotion != 0 ? promotion : piece, to));
+
+            if (captured != 0) {
+                int capturedSquare = BitboardBoard.isEnPassant(move) ? (white ? to - 8 : to + 8) : to;
+                sub(offset, featureIndex(perspective, !white, captured, capturedSquare));
+            }
+            if (BitboardBoard.isCastling(move)) {
+                boolean kingside = to % 8 == 6;
+                int rank = white ? 0 : 56;
+                sub(offset, featureIndex(perspective, white, 4, rank + (kingside ? 7 : 0)));
+                add(offset, featureIndex(perspective, white, 4, rank + (kingside ? 5 : 3)));
+            }
+        }
+    }
+
+    @Override
+    public void undoMove(long[] board, int move) {
+        ply--;
+    }
+
+    private void add(int offset, int feature) {
+        int row = feature * hidden;
+        int i = 0;
+        for (int bound = SHORTS.loopBound(hidden); i < bound; i += SHORTS.length()) {
+            ShortVector acc = ShortVector.fromArray(SHORTS, accumulators, offset + i);
+            acc.add(ShortVector.fromArray(SHORTS, featureWeights, row + i)).intoArray(accumulators, offset + i);
+        }
+        for (; i < hidden; i++) {
+            accumulators[offset + i] += featureWeights[row + i];
+        }
+    }
+
+    private void sub(int offset, int feature) {
+        int row = feature * hidden;
+        int i = 0;
+        for (int bound = SHORTS.loopBound(hidden); i < bound; i += SHORTS.length()) {
+            ShortVector acc = ShortVector.fromArray(SHORTS, accumulators, offset + i);
+            acc.sub(ShortVector.fromArray(SHORTS, featureWeights, row + i)).intoArray(accumulators, offset + i);
+        }
+        for (; i < hidden; i++) {
+            accumulators[offset + i] -= featureWeights[row + i];
+        }
+    }
+
+    // ###########################################################################
+    // INFERENCE.
+
+    @Override
+    public int evaluate(long[] board) {
+        boolean whiteToMove = BitboardBoard.isWhiteToMove(board[15]);
+        int base = ply * 2 * hidden;
+        int us = base + (whiteToMove ? 0 : hidden);
+        int them = base + (whiteToMove ? hidden : 0);
+
+        long output = outputBias;
+        output += clippedDot(us, 0);
+        output += clippedDot(them, hidden);
+
+        int score = (int) (output * EVAL_SCALE / (QA * QB));
+        return whiteToMove ? score : -score;
+    }
+
+    // Sum of clamp(accumulator, 0, QA) * outputWeight over one perspective.
+    // The products are done in 16 bits, then widened to 32 bits in two halves before they're added up.
+    private int clippedDot(int accOffset, int weightOffset) {
+        IntVector sum = IntVector.zero(INTS);
+        int i = 0;
+        for (int bound = SHORTS.loopBound(hidden); i < bound; i += SHORTS.length()) {
+            ShortVector acc = ShortVector.fromArray(SHORTS, accumulators, accOffset + i).max((short) 0).min((short) QA);
+            ShortVector product = acc.mul(ShortVector.fromArray(SHORTS, outputWeights, weightOffset + i));
+            sum = sum.add((IntVector) product.convertShape(VectorOperators.S2I, INTS, 0))
+                     .add((IntVector) product.convertShape(VectorOperators.S2I, INTS, 1));
+        }
+        int result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < hidden; i++) {
+            int a = Math.max(0, Math.min(QA, accumulators[accOffset + i]));
+            result += a * outputWeights[weightOffset + i];
+        }
+        return result;
+    }
+}
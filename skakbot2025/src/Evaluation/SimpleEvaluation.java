@@ -2,10 +2,19 @@ package Evaluation;
 
 import Board.BitboardBoard;
 
-public class SimpleEvaluation {
+public class SimpleEvaluation implements Evaluator {
 
     PieceSquareTables tables = new PieceSquareTables();
 
+    // The weights below are package-private and non-final so TexelTuner can adjust them.
+    int[] pieceValues = {100, 320, 330, 500, 900, 20000}; // In order: pawns, knights, bishops, rooks, queen, and king.
+    int doubledPawnPenalty = 20;
+    int isolatedPawnPenalty = 15;
+    int passedPawnBonus = 30;
+    int passedPawnRankBonus = 5;
+    int castledBonus = 50;
+    int[] mobilityMultipliers = {1, 3, 4, 3, 2, 1}; // Pawn, knight, bishop, rook, queen, king.
+
     private static final long[] FILE_MASK = new long[8];
     private static final long[] PASSED_MASK_WHITE = new long[64];
     private static final long[] PASSED_MASK_BLACK = new long[64];
@@ -44,18 +53,44 @@ public class SimpleEvaluation {
         }
     }
 
+    @Override
+    public int evaluate(long[] board) {
+        return simpleEvaluation(board);
+    }
+
+    @Override
+    public int evaluate(long[] board, long[] whiteAttacks, long[] blackAttacks) {
+        return simpleEvaluation(board, whiteAttacks, blackAttacks);
+    }
+
+    // All the weights, so the TT snapshots of one set of weights aren't loaded after the tuner has changed them.
+    @Override
+    public long evalHash() {
+        int[][] weights = {pieceValues, mobilityMultipliers,
+                {doubledPawnPenalty, isolatedPawnPenalty, passedPawnBonus, passedPawnRankBonus, castledBonus},
+                tables.pawnTable, tables.knightTable, tables.bishopTable, tables.rookTable, tables.queenTable, tables.kingTableMG, tables.kingTableEG};
+        long hash = 17;
+        for (int[] group : weights) {
+            for (int w : group) hash = hash * 31 + w;
+        }
+        return hash;
+    }
+
     public int simpleEvaluation(long[] board) {
+        return simpleEvaluation(board, BitboardBoard.getAllAttacks(board, true), BitboardBoard.getAllAttacks(board, false));
+    }
+
+    int simpleEvaluation(long[] board, long[] whiteAttacks, long[] blackAttacks) {
         int evaluation = 0;
         evaluation += materialEvaluation(board);
         evaluation += pieceSquareEvaluation(board);
         evaluation += pawnStructureEvaluation(board);
-        evaluation += positionalEvaluation(board);
+        evaluation += positionalEvaluation(board, whiteAttacks, blackAttacks);
         return evaluation;
     }
 
     int materialEvaluation(long[] board) {
         int evaluation = 0;
-        int[] pieceValues = {100, 320, 330, 500, 900, 20000}; // In order: pawns, knights, bishops, rooks, queen, and king.
         int[] pieceCount = new int[6]; // Number of each piece type.
 
         // Count pieces for both players.
@@ -120,7 +155,7 @@ public class SimpleEvaluation {
         int penalty = 0;
         for (int file = 0; file < 8; file++) {
             int c = Long.bitCount(pawnBB & FILE_MASK[file]);
-            if (c > 1) penalty += 20 * (c - 1);
+            if (c > 1) penalty += doubledPawnPenalty * (c - 1);
         }
         return penalty;
     }
@@ -133,7 +168,7 @@ public class SimpleEvaluation {
             long neigh = 0L;
             if (file > 0) neigh |= FILE_MASK[file - 1];
             if (file < 7) neigh |= FILE_MASK[file + 1];
-            if ((pawnBB & neigh) == 0) penalty += 15;
+            if ((pawnBB & neigh) == 0) penalty += isolatedPawnPenalty;
         }
         return penalty;
     }
@@ -144,42 +179,39 @@ public class SimpleEvaluation {
             if (((ourPawns >>> sq) & 1) == 0) continue;
             if ((theirPawns & passedMask[sq]) == 0) {
                 int rank = sq / 8;
-                bonus += 30 + 5 * rank;
+                bonus += passedPawnBonus + passedPawnRankBonus * rank;
             }
         }
         return bonus;
     }
 
-    int positionalEvaluation(long[] board) {
+    int positionalEvaluation(long[] board, long[] whiteAttacks, long[] blackAttacks) {
         int eval = 0;
-        long[] whiteAttacks = BitboardBoard.getAllAttacks(board, true);
-        long[] blackAttacks = BitboardBoard.getAllAttacks(board, false);
 
         boolean[] castlingRights = BitboardBoard.getCastlingRights(board[15]);
 
         // Reward castling positions only if castling has actually occurred (i.e., rights revoked)
         // White king-side castled
         if (!castlingRights[0] && (board[8] & (1L << 6)) != 0L && (board[6] & (1L << 5)) != 0L) {
-            eval += 50;
+            eval += castledBonus;
         }
         // White queen-side castled
         if (!castlingRights[1] && (board[8] & (1L << 2)) != 0L && (board[6] & (1L << 3)) != 0L) {
-            eval += 50;
+            eval += castledBonus;
         }
         // Black king-side castled
         if (!castlingRights[2] && (board[14] & (1L << 62)) != 0L && (board[12] & (1L << 61)) != 0L) {
-            eval -= 50;
+            eval -= castledBonus;
         }
         // Black queen-side castled
         if (!castlingRights[3] && (board[14] & (1L << 58)) != 0L && (board[12] & (1L << 59)) != 0L) {
-            eval -= 50;
+            eval -= castledBonus;
         }
 
         // Mobility: number of attacks per piece type
-        int[] multipliers = {1, 3, 4, 3, 2, 1}; // Pawn, knight, bishop, rook, queen, king.
         for (int i = 0; i < 6; i++) {
-            eval += Long.bitCount(whiteAttacks[i + 1]) * multipliers[i];
-            eval -= Long.bitCount(blackAttacks[i + 1]) * multipliers[i];
+            eval += Long.bitCount(whiteAttacks[i + 1]) * mobilityMultipliers[i];
+            eval -= Long.bitCount(blackAttacks[i + 1]) * mobilityMultipliers[i];
         }
 
         return eval;
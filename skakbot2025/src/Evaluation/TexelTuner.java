@@ -0,0 +1,263 @@
+package Evaluation;
+
+import Board.BitboardBoard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+public class TexelTuner {
+
+    // Texel's tuning method: take a big pile of positions from real games, each labelled with how the game ended,
+    // and nudge the evaluation weights until sigmoid(evaluation) predicts those results as well as possible.
+    // The error is the mean squared difference between the result (1 = white won, 0.5 = draw, 0 = black won)
+    // and 1 / (1 + 10^(-K * eval / 400)), where K is fitted once up front so the scale of the eval stays put.
+    // The optimiser is the plain local search from the original write-up: try +step and -step on every weight, keep whatever helps.
+
+    // Every loss computation is one pass over all positions, split across all cores with a parallel stream.
+    // The positions are stored packed into one long[] (16 longs each) so millions of them don't turn into millions of objects.
+
+    private static final int STRIDE = 16; // Just the bitboards; the evaluation never looks at the mailbox.
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[STRIDE]);
+
+    private final SimpleEvaluation eval = new SimpleEvaluation();
+    private final List<Parameter> parameters = new ArrayList<>();
+
+    private long[] positions = new long[STRIDE * 1024];
+    private float[] results = new float[1024];
+    private int count = 0;
+
+    private long positionsEvaluated = 0;
+    private long evaluationNanos = 0;
+
+    private static class Parameter {
+        final String name;
+        final IntSupplier getter;
+        final IntConsumer setter;
+
+        Parameter(String name, IntSupplier getter, IntConsumer setter) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    public TexelTuner() {
+        // The king's value is left alone; both sides always have exactly one, so it can't make a difference.
+        for (int i = 0; i < 5; i++) addArrayParameters("pieceValues", eval.pieceValues, i);
+        parameters.add(new Parameter("doubledPawnPenalty", () -> eval.doubledPawnPenalty, v -> eval.doubledPawnPenalty = v));
+        parameters.add(new Parameter("isolatedPawnPenalty", () -> eval.isolatedPawnPenalty, v -> eval.isolatedPawnPenalty = v));
+        parameters.add(new Parameter("passedPawnBonus", () -> eval.passedPawnBonus, v -> eval.passedPawnBonus = v));
+        parameters.add(new Parameter("passedPawnRankBonus", () -> eval.passedPawnRankBonus, v -> eval.passedPawnRankBonus = v));
+        parameters.add(new Parameter("castledBonus", () -> eval.castledBonus, v -> eval.castledBonus = v));
+        for (int i = 0; i < 6; i++) addArrayParameters("mobilityMultipliers", eval.mobilityMultipliers, i);
+
+        PieceSquareTables t = eval.tables;
+        int[][] tables = {t.pawnTable, t.knightTable, t.bishopTable, t.rookTable, t.queenTable, t.kingTableMG, t.kingTableEG};
+        String[] names = {"pawnTable", "knightTable", "bishopTable", "rookTable", "queenTable", "kingTableMG", "kingTableEG"};
+        for (int i = 0; i < tables.length; i++) {
+            for (int square = 0; square < 64; square++) addArrayParameters(names[i], tables[i], square);
+        }
+    }
+
+    private void addArrayParameters(String name, int[] array, int index) {
+        parameters.add(new Parameter(name + "[" + index + "]", () -> array[index], v -> array[index] = v));
+    }
+
+    // ###########################################################################
+    // LOADING.
+
+    // One position per line: a FEN followed by the result, either as "1-0" / "0-1" / "1/2-1/2" or as [1.0] / [0.5] / [0.0].
+    // Lines that don't have both are skipped.
+    public void load(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                float result = parseResult(line);
+                if (Float.isNaN(result) || !line.contains("/")) continue;
+                try {
+                    add(BitboardBoard.FENStringToBitboard(fenFields(line)), result);
+                } catch (RuntimeException e) {
+                    // Malformed FEN; not worth stopping a multi-million position run over.
+                }
+            }
+        }
+        System.out.println("Loaded " + count + " positions in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private void add(long[] board, float result) {
+        if (count == results.length) {
+            results = Arrays.copyOf(results, count * 2);
+            positions = Arrays.copyOf(positions, count * 2 * STRIDE);
+        }
+        System.arraycopy(board, 0, positions, count * STRIDE, STRIDE);
+        results[count++] = result;
+    }
+
+    private static float parseResult(String line) {
+        if (line.contains("1/2-1/2")) return 0.5f;
+        if (line.contains("1-0")) return 1.0f;
+        if (line.contains("0-1")) return 0.0f;
+        int open = line.lastIndexOf('['), close = line.lastIndexOf(']');
+        if (open >= 0 && close > open) {
+            try {
+                return Float.parseFloat(line.substring(open + 1, close).trim());
+            } catch (NumberFormatException e) {
+                return Float.NaN;
+            }
+        }
+        return Float.NaN;
+    }
+
+    // Placement, side to move, castling and en passant; whatever comes after that is ignored.
+    private static String fenFields(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        return String.join(" ", Arrays.copyOf(tokens, Math.min(4, tokens.length)));
+    }
+
+    // ###########################################################################
+    // TUNING.
+
+    public double loss(double k) {
+        long start = System.nanoTime();
+        double total = IntStream.range(0, count).parallel().mapToDouble(i -> {
+            long[] board = SCRATCH.get();
+            System.arraycopy(positions, i * STRIDE, board, 0, STRIDE);
+            double predicted = 1.0 / (1.0 + Math.pow(10.0, -k * eval.simpleEvaluation(board) / 400.0));
+            double error = results[i] - predicted;
+            return error * error;
+        }).sum();
+        evaluationNanos += System.nanoTime() - start;
+        positionsEvaluated += count;
+        return total / count;
+    }
+
+    // Coarse scan, then a finer one around the best value.
+    public double fitK() {
+        double bestK = 1.0, bestLoss = Double.MAX_VALUE;
+        for (double k = 0.1; k <= 3.0; k += 0.1) {
+            double l = loss(k);
+            if (l < bestLoss) { bestLoss = l; bestK = k; }
+        }
+        double center = bestK;
+        for (double k = center - 0.1; k <= center + 0.1; k += 0.01) {
+            double l = loss(k);
+            if (l < bestLoss) { bestLoss = l; bestK = k; }
+        }
+        System.out.printf("K = %.3f, loss = %.6f%n", bestK, bestLoss);
+        return bestK;
+    }
+
+    public void tune(double k, int maxIterations, int step, Path output) throws IOException {
+        double best = loss(k);
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            int improvedCount = 0;
+            for (Parameter p : parameters) {
+                int old = p.getter.getAsInt();
+
+                p.setter.accept(old + step);
+                double l = loss(k);
+                if (l < best) {
+                    best = l;
+                    improvedCount++;
+                    continue;
+                }
+
+                p.setter.accept(old - step);
+                l = loss(k);
+                if (l < best) {
+                    best = l;
+                    improvedCount++;
+                    continue;
+                }
+
+                p.setter.accept(old);
+            }
+
+            System.out.printf("Iteration %d: loss %.6f, %d weights changed%n", iteration, best, improvedCount);
+            reportThroughput();
+            write(output); // Written every iteration, so a long run can be stopped at any point without losing everything.
+            if (improvedCount == 0) break;
+        }
+    }
+
+    private void reportThroughput() {
+        double seconds = evaluationNanos / 1e9;
+        int cores = Runtime.getRuntime().availableProcessors();
+        double perSecond = positionsEvaluated / Math.max(seconds, 1e-9);
+        System.out.printf("  %.0f positions/s total, %.0f positions/s per core (%d cores)%n", perSecond, perSecond / cores, cores);
+    }
+
+    // ###########################################################################
+    // OUTPUT.
+
+    // Written as Java, ready to paste over the current values in SimpleEvaluation and PieceSquareTables.
+    public void write(Path output) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output))) {
+            out.println("// SimpleEvaluation");
+            out.println("int[] pieceValues = " + Arrays.toString(eval.pieceValues).replace('[', '{').replace(']', '}') + ";");
+            out.println("int doubledPawnPenalty = " + eval.doubledPawnPenalty + ";");
+            out.println("int isolatedPawnPenalty = " + eval.isolatedPawnPenalty + ";");
+            out.println("int passedPawnBonus = " + eval.passedPawnBonus + ";");
+            out.println("int passedPawnRankBonus = " + eval.passedPawnRankBonus + ";");
+            out.println("int castledBonus = " + eval.castledBonus + ";");
+            out.println("int[] mobilityMultipliers = " + Arrays.toString(eval.mobilityMultipliers).replace('[', '{').replace(']', '}') + ";");
+            out.println();
+            out.println("// PieceSquareTables");
+            PieceSquareTables t = eval.tables;
+            writeTable(out, "pawnTable", t.pawnTable);
+            writeTable(out, "knightTable", t.knightTable);
+            writeTable(out, "bishopTable", t.bishopTable);
+            writeTable(out, "rookTable", t.rookTable);
+            writeTable(out, "queenTable", t.queenTable);
+            writeTable(out, "kingTableMG", t.kingTableMG);
+            writeTable(out, "kingTableEG", t.kingTableEG);
+        }
+    }
+
+    private static void writeTable(PrintWriter out, String name, int[] table) {
+        out.println("int[] " + name + " = {");
+        for (int row = 0; row < 8; row++) {
+            StringBuilder sb = new StringBuilder("        ");
+            for (int col = 0; col < 8; col++) {
+                sb.append(String.format("%4d", table[row * 8 + col]));
+                if (row < 7 || col < 7) sb.append(",");
+            }
+            out.println(sb);
+        }
+        out.println("};");
+        out.println();
+    }
+
+    // Usage: TexelTuner <positions file> [output file] [max iterations] [step]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TexelTuner <positions file> [output file] [max iterations] [step]");
+            return;
+        }
+        Path output = Path.of(args.length > 1 ? args[1] : "tuned_parameters.txt");
+        int maxIterations = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int step = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        TexelTuner tuner = new TexelTuner();
+        tuner.load(Path.of(args[0]));
+        if (tuner.count == 0) {
+            System.out.println("No labelled positions found.");
+            return;
+        }
+        System.out.println("Tuning " + tuner.parameters.size() + " weights");
+        double k = tuner.fitK();
+        tuner.reportThroughput();
+        tuner.tune(k, maxIterations, step, output);
+        System.out.println("Tuned weights written to " + output);
+    }
+}
@@ -0,0 +1,134 @@
+import Board.BitboardBoard;
+import Board.PositionStack;
+import Board.UndoStack;
+import Search.TimeManager;
+
+import java.util.Arrays;
+
+public class MakeMoveBenchmark {
+
+    // Compares the three ways of getting from one position to the next:
+    // - xor:       makeOrUndoMove() on the 32-bit moves, the same call both ways.
+    // - unmake:    makeMove()/unmakeMove() on the 16-bit moves, with an UndoStack.
+    // - copy-make: PositionStack; copy the board, apply the move forwards, and just drop the copy afterwards.
+    // First perft on the standard test positions (move generation included, as in the real thing), then the actual search
+    // with make/unmake and with copy-make, on a fixed time per position.
+    //
+    // There's no JMH here (no build system to pull it in with), so this does the usual by hand: a few warm-up rounds
+    // so the JIT has settled, then measured rounds, reporting the best and the median. Run it with the same flags as the engine.
+    // Usage: MakeMoveBenchmark [perft depth] [rounds] [search ms per position]
+
+    private static final String[] POSITIONS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8"
+    };
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final UndoStack UNDO = new UndoStack(64);
+    private static final PositionStack STACK = new PositionStack(64);
+
+    private interface Perft {
+        long run(long[] board, int depth, boolean white);
+    }
+
+    private static long perftXor(long[] board, int depth, boolean white) {
+        if (depth == 0) return 1;
+        long nodes = 0;
+        for (int move : BitboardBoard.getAllMoves(board, white)) {
+            BitboardBoard.makeOrUndoMove(board, move);
+            if (!BitboardBoard.isInCheck(board, white)) nodes += perftXor(board, depth - 1, !white);
+            BitboardBoard.makeOrUndoMove(board, move);
+        }
+        return nodes;
+    }
+
+    private static long perftUnmake(long[] board, int depth, boolean white) {
+        if (depth == 0) return 1;
+        long nodes = 0;
+        for (int move : BitboardBoard.getAllMoves(board, white)) {
+            int compact = BitboardBoard.toCompactMove(move);
+            BitboardBoard.makeMove(board, compact, 0L, UNDO);
+            if (!BitboardBoard.isInCheck(board, white)) nodes += perftUnmake(board, depth - 1, !white);
+            BitboardBoard.unmakeMove(board, compact, UNDO);
+        }
+        return nodes;
+    }
+
+    private static long perftCopyMake(long[] board, int depth, boolean white) {
+        if (depth == 0) return 1;
+        long nodes = 0;
+        for (int move : BitboardBoard.getAllMoves(board, white)) {
+            long[] child = STACK.push(board, BitboardBoard.toCompactMove(move));
+            if (!BitboardBoard.isInCheck(child, white)) nodes += perftCopyMake(child, depth - 1, !white);
+            STACK.pop();
+        }
+        return nodes;
+    }
+
+    // Runs the perft over every position, rounds times, and prints the best and median time per round.
+    private static void benchmarkPerft(String name, Perft perft, int depth, int rounds, long expectedNodes) {
+        long[] times = new long[rounds];
+        long nodes = 0;
+        for (int round = -WARMUP_ROUNDS; round < rounds; round++) {
+            nodes = 0;
+            long start = System.nanoTime();
+            for (String fen : POSITIONS) {
+                long[] board = BitboardBoard.FENStringToBitboard(fen);
+                nodes += perft.run(board, depth, BitboardBoard.isWhiteToMove(board[15]));
+            }
+            if (round >= 0) times[round] = System.nanoTime() - start;
+        }
+        if (expectedNodes != -1 && nodes != expectedNodes) {
+            System.out.println(name + ": WRONG NODE COUNT " + nodes + ", expected " + expectedNodes);
+        }
+        report(name, nodes, times);
+    }
+
+    private static void benchmarkSearch(String name, boolean copyMake, long msPerPosition, int rounds) {
+        ChessAI ai = new ChessAI();
+        ai.setCopyMake(copyMake);
+        long[] times = new long[rounds];
+        long nodes = 0;
+        for (int round = -WARMUP_ROUNDS; round < rounds; round++) {
+            long roundNodes = 0, roundNanos = 0;
+            for (String fen : POSITIONS) {
+                long start = System.nanoTime();
+                ai.findBestMove(BitboardBoard.FENStringToBitboard(fen), TimeManager.fixed(msPerPosition * 1_000_000L));
+                roundNanos += System.nanoTime() - start;
+                roundNodes += ai.getStatistics().getTotalNodes();
+            }
+            // A fixed time gives a different number of nodes every round, so scale each round to the same node count.
+            if (round == -WARMUP_ROUNDS) nodes = roundNodes;
+            if (round >= 0) times[round] = roundNanos * nodes / Math.max(1, roundNodes);
+        }
+        report(name, nodes, times);
+    }
+
+    private static void report(String name, long nodes, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long best = sorted[0], median = sorted[sorted.length / 2];
+        System.out.printf("  %-10s %,12d nodes   best %8.1f ms (%,6.2f Mnps)   median %8.1f ms (%,6.2f Mnps)%n", name, nodes,
+                best / 1e6, nodes * 1e3 / best, median / 1e6, nodes * 1e3 / median);
+    }
+
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long searchMs = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        ChessAI.ensureLookupTables();
+
+        long expected = depth == 4 ? 197_281 + 4_085_603 + 43_238 + 422_333 + 2_103_487 : -1; // Known perft(4) results.
+        System.out.println("Perft " + depth + " over " + POSITIONS.length + " positions, " + rounds + " rounds:");
+        benchmarkPerft("xor", MakeMoveBenchmark::perftXor, depth, rounds, expected);
+        benchmarkPerft("unmake", MakeMoveBenchmark::perftUnmake, depth, rounds, expected);
+        benchmarkPerft("copy-make", MakeMoveBenchmark::perftCopyMake, depth, rounds, expected);
+
+        System.out.println("Search, " + searchMs + " ms per position, " + rounds + " rounds:");
+        benchmarkSearch("unmake", false, searchMs, rounds);
+        benchmarkSearch("copy-make", true, searchMs, rounds);
+    }
+}
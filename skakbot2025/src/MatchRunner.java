@@ -0,0 +1,330 @@
+import Board.BitboardBoard;
+import Evaluation.Evaluator;
+import Evaluation.NNUEEvaluation;
+import Evaluation.SimpleEvaluation;
+import Search.TimeManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MatchRunner {
+
+    // Plays engine A against engine B, lots of fast games at once, to find out whether a change actually made ChessAI stronger.
+    // - One game per core at a time. Every worker thread has its own pair of ChessAI instances, so nothing is shared but the lookup tables.
+    // - Every opening from the suite is played twice, once with each engine as white, which cancels out most of the opening's own bias.
+    // - Games are adjudicated so they don't drag on: a draw after MAX_PLIES, and a win once one side is ahead by
+    //   ADJUDICATION_MATERIAL for ADJUDICATION_PLIES plies in a row.
+    // - After every game we update an SPRT (sequential probability ratio test) of 'A is ELO1 stronger' against 'A is ELO0 stronger',
+    //   and stop as soon as it's confident either way (5% false positives and 5% false negatives).
+
+    // Engines are given as 'simple' or 'nnue:<weights file>'.
+    // Usage: MatchRunner <engine A> <engine B> [max games] [base ms+increment ms] [openings file, one FEN per line]
+
+    private static final int MAX_PLIES = 300;
+    private static final int ADJUDICATION_MATERIAL = 600; // Centipawns, counting material only.
+    private static final int ADJUDICATION_PLIES = 8;
+    private static final int FIFTY_MOVE_PLIES = 100;
+
+    private static final double ELO0 = 0.0;
+    private static final double ELO1 = 10.0;
+    private static final double ALPHA = 0.05;
+    private static final double BETA = 0.05;
+
+    private static final int[] MATERIAL = {0, 100, 320, 330, 500, 900, 0};
+
+    // Used when no openings file is given. A few plies into the main openings, so the games don't all start the same way.
+    private static final String[] DEFAULT_OPENINGS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pp1ppppp/8/2p5/4P3/8/PPPP1PPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pppp1ppp/4p3/8/4P3/8/PPPP1PPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pp1ppppp/2p5/8/4P3/8/PPPP1PPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/ppp1pppp/8/3p4/3P4/8/PPP1PPPP/RNBQKBNR w KQkq -",
+            "rnbqkb1r/pppppppp/5n2/8/3P4/8/PPP1PPPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/ppp1pppp/8/3p4/2PP4/8/PP2PPPP/RNBQKBNR b KQkq -",
+            "rnbqkb1r/pppppp1p/5np1/8/2PP4/8/PP2PPPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pppppppp/8/8/2P5/8/PP1PPPPP/RNBQKBNR b KQkq -",
+            "rnbqkbnr/pppppppp/8/8/8/5N2/PPPPPPPP/RNBQKB1R b KQkq -",
+            "r1bqkbnr/pppp1ppp/2n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R b KQkq -",
+            "r1bqkbnr/pppp1ppp/2n5/4p3/2B1P3/5N2/PPPP1PPP/RNBQK2R b KQkq -",
+            "rnbqkbnr/pp2pppp/3p4/2p5/4P3/5N2/PPPP1PPP/RNBQKB1R w KQkq -",
+            "rnbqkbnr/ppp2ppp/4p3/3p4/3PP3/8/PPP2PPP/RNBQKBNR w KQkq -",
+            "rnbqkbnr/pp2pppp/2p5/3p4/3PP3/8/PPP2PPP/RNBQKBNR w KQkq -",
+    };
+
+    record EngineSpec(String name, String spec) {
+        Evaluator createEvaluator() {
+            if (spec.startsWith("nnue:")) {
+                try {
+                    return NNUEEvaluation.load(Path.of(spec.substring(5)));
+                } catch (IOException e) {
+                    throw new RuntimeException("Couldn't load " + spec + ": " + e.getMessage(), e);
+                }
+            }
+            return new SimpleEvaluation();
+        }
+    }
+
+    private enum Outcome { WHITE_WINS, BLACK_WINS, DRAW }
+
+    private record GameResult(Outcome outcome, String reason, int plies) {}
+
+    private final EngineSpec engineA, engineB;
+    private final long baseMs, incrementMs;
+    private final List<String> openings;
+    private final int maxGames;
+
+    // Each worker thread keeps its own engines around between games: [0] is A, [1] is B.
+    private final ThreadLocal<ChessAI[]> engines;
+    // All of them, so run() can shut them down at the end: every one holds an off-heap TT and a search thread (and a ForkJoinPool with
+    // -Dskakbot.threads), and the ThreadLocal would never let go of them.
+    private final Queue<ChessAI> allEngines = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private int wins, losses, draws; // From A's point of view. Guarded by 'this'.
+    private long startNanos;
+
+    public MatchRunner(EngineSpec engineA, EngineSpec engineB, long baseMs, long incrementMs, List<String> openings, int maxGames) {
+        this.engineA = engineA;
+        this.engineB = engineB;
+        this.baseMs = baseMs;
+        this.incrementMs = incrementMs;
+        this.openings = openings;
+        this.maxGames = maxGames;
+        this.engines = ThreadLocal.withInitial(() -> {
+            ChessAI[] pair = {new ChessAI(engineA.createEvaluator()), new ChessAI(engineB.createEvaluator())};
+            allEngines.addAll(List.of(pair));
+            return pair;
+        });
+    }
+
+    public void run() throws InterruptedException {
+        ChessAI.ensureLookupTables(); // Built once up front, rather than racing for it from every thread.
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(engineA.name + " vs " + engineB.name + ": up to " + maxGames + " games, " + baseMs + "+" + incrementMs + " ms, "
+                + openings.size() + " openings, " + cores + " concurrent games");
+        System.out.printf("SPRT: elo0 %.1f, elo1 %.1f, alpha %.2f, beta %.2f%n", ELO0, ELO1, ALPHA, BETA);
+
+        startNanos = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(cores);
+        for (int game = 0; game < maxGames; game++) {
+            final int g = game;
+            pool.execute(() -> {
+                if (stopped.get()) return;
+                String opening = openings.get((g / 2) % openings.size());
+                boolean aIsWhite = g % 2 == 0;
+                GameResult result = playGame(opening, aIsWhite);
+                record(g, aIsWhite, result);
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            for (ChessAI engine : allEngines) engine.shutdown();
+        }
+        printSummary();
+    }
+
+    // ###########################################################################
+    // PLAYING A GAME.
+
+    private GameResult playGame(String opening, boolean aIsWhite) {
+        ChessAI[] pair = engines.get();
+        ChessAI white = aIsWhite ? pair[0] : pair[1];
+        ChessAI black = aIsWhite ? pair[1] : pair[0];
+        white.clearHash(); // The TTs live on between searches, but every game should start from scratch.
+        black.clearHash();
+
+        long[] board = BitboardBoard.FENStringToBitboard(opening);
+        long whiteClock = baseMs, blackClock = baseMs;
+        int fullMoveNumber = BitboardBoard.fenFullMoveNumber(opening);
+        int halfmoveClock = BitboardBoard.fenHalfmoveClock(opening);
+        int adjudicationCount = 0;
+        long[] history = new long[MAX_PLIES];
+        Map<String, Integer> seen = new HashMap<>();
+        seen.merge(BitboardBoard.bitboardToFENString(board), 1, Integer::sum);
+
+        for (int ply = 0; ply < MAX_PLIES; ply++) {
+            boolean whiteToMove = BitboardBoard.isWhiteToMove(board[15]);
+            int[] legal = BitboardBoard.getLegalMoves(board, whiteToMove);
+            if (legal.length == 0) {
+                if (!BitboardBoard.isInCheck(board, whiteToMove)) return new GameResult(Outcome.DRAW, "stalemate", ply);
+                return new GameResult(whiteToMove ? Outcome.BLACK_WINS : Outcome.WHITE_WINS, "checkmate", ply);
+            }
+            if (insufficientMaterial(board)) return new GameResult(Outcome.DRAW, "insufficient material", ply);
+            if (halfmoveClock >= FIFTY_MOVE_PLIES) return new GameResult(Outcome.DRAW, "fifty moves", ply);
+
+            ChessAI engine = whiteToMove ? white : black;
+            long clock = whiteToMove ? whiteClock : blackClock;
+            long start = System.nanoTime();
+            int move = engine.findBestMove(board, Arrays.copyOf(history, ply), halfmoveClock, TimeManager.forClock(clock, incrementMs, fullMoveNumber));
+            long usedMs = (System.nanoTime() - start) / 1_000_000;
+
+            clock = clock - usedMs + incrementMs;
+            if (clock - incrementMs < 0) {
+                return new GameResult(whiteToMove ? Outcome.BLACK_WINS : Outcome.WHITE_WINS, "time forfeit", ply);
+            }
+            if (!contains(legal, move)) {
+                // The root only ever searches legal moves, so this would be a bug (or -1, no move at all); either way it's a loss,
+                // like it would be against a human.
+                return new GameResult(whiteToMove ? Outcome.BLACK_WINS : Outcome.WHITE_WINS, "illegal move " + BitboardBoard.moveToString(move), ply);
+            }
+            if (whiteToMove) whiteClock = clock; else blackClock = clock;
+
+            boolean irreversible = BitboardBoard.getPiece(move) == 1 || BitboardBoard.getCaptured(move) != 0;
+            history[ply] = ChessAI.computeZobrist(board);
+            BitboardBoard.makeOrUndoMove(board, move);
+            halfmoveClock = irreversible ? 0 : halfmoveClock + 1;
+            if (!whiteToMove) fullMoveNumber++;
+
+            if (seen.merge(BitboardBoard.bitboardToFENString(board), 1, Integer::sum) >= 3) {
+                return new GameResult(Outcome.DRAW, "threefold repetition", ply + 1);
+            }
+
+            int material = materialBalance(board);
+            adjudicationCount = Math.abs(material) >= ADJUDICATION_MATERIAL ? adjudicationCount + 1 : 0;
+            if (adjudicationCount >= ADJUDICATION_PLIES) {
+                return new GameResult(material > 0 ? Outcome.WHITE_WINS : Outcome.BLACK_WINS, "material adjudication", ply + 1);
+            }
+        }
+        return new GameResult(Outcome.DRAW, "move limit", MAX_PLIES);
+    }
+
+    private static boolean contains(int[] moves, int move) {
+        for (int m : moves) if (m == move) return true;
+        return false;
+    }
+
+    // White's material minus black's, in centipawns.
+    private static int materialBalance(long[] board) {
+        int balance = 0;
+        for (int type = 1; type <= 5; type++) {
+            balance += MATERIAL[type] * (Long.bitCount(board[2 + type]) - Long.bitCount(board[8 + type]));
+        }
+        return balance;
+    }
+
+    // Bare kings, or a single knight or bishop against a bare king.
+    private static boolean insufficientMaterial(long[] board) {
+        if ((board[3] | board[6] | board[7] | board[9] | board[12] | board[13]) != 0L) return false;
+        return Long.bitCount(board[4] | board[5] | board[10] | board[11]) <= 1;
+    }
+
+    // ###########################################################################
+    // BOOKKEEPING AND SPRT.
+
+    private synchronized void record(int game, boolean aIsWhite, GameResult result) {
+        if (stopped.get()) return;
+
+        boolean aWon = (result.outcome == Outcome.WHITE_WINS) == aIsWhite;
+        if (result.outcome == Outcome.DRAW) draws++;
+        else if (aWon) wins++;
+        else losses++;
+
+        int played = wins + losses + draws;
+        double minutes = (System.nanoTime() - startNanos) / 60e9;
+        String score = result.outcome == Outcome.DRAW ? "1/2-1/2" : result.outcome == Outcome.WHITE_WINS ? "1-0" : "0-1";
+        double llr = llr();
+        System.out.printf("Game %d (%s as white): %s, %s after %d plies | +%d -%d =%d | %s | LLR %.2f [%.2f, %.2f] | %.1f games/min%n",
+                game + 1, aIsWhite ? engineA.name : engineB.name, score, result.reason, result.plies,
+                wins, losses, draws, eloString(), llr, lowerBound(), upperBound(), played / Math.max(minutes, 1e-9));
+
+        if (llr >= upperBound()) {
+            System.out.println("SPRT: H1 accepted, " + engineA.name + " is stronger");
+            stopped.set(true);
+        } else if (llr <= lowerBound()) {
+            System.out.println("SPRT: H0 accepted, " + engineA.name + " is not stronger");
+            stopped.set(true);
+        }
+    }
+
+    private static double lowerBound() {
+        return Math.log(BETA / (1 - ALPHA));
+    }
+
+    private static double upperBound() {
+        return Math.log((1 - BETA) / ALPHA);
+    }
+
+    private static double expectedScore(double elo) {
+        return 1.0 / (1.0 + Math.pow(10.0, -elo / 400.0));
+    }
+
+    // The usual normal approximation of the trinomial (win/draw/loss) log-likelihood ratio.
+    private double llr() {
+        int n = wins + losses + draws;
+        if (wins == 0 || losses == 0) return 0.0; // Not enough information for a variance yet.
+        double score = (wins + 0.5 * draws) / n;
+        double variance = (wins * Math.pow(1 - score, 2) + draws * Math.pow(0.5 - score, 2) + losses * Math.pow(score, 2)) / n;
+        double s0 = expectedScore(ELO0), s1 = expectedScore(ELO1);
+        return n * (s1 - s0) * (2 * score - s0 - s1) / (2 * variance);
+    }
+
+    private String eloString() {
+        int n = wins + losses + draws;
+        double score = (wins + 0.5 * draws) / n;
+        if (score <= 0.0 || score >= 1.0) return "Elo n/a";
+        double elo = -400 * Math.log10(1 / score - 1);
+        double variance = (wins * Math.pow(1 - score, 2) + draws * Math.pow(0.5 - score, 2) + losses * Math.pow(score, 2)) / n;
+        double margin = 1.96 * Math.sqrt(variance / n);
+        double high = Math.min(score + margin, 0.999), low = Math.max(score - margin, 0.001);
+        double error = (-400 * Math.log10(1 / high - 1) + 400 * Math.log10(1 / low - 1)) / 2;
+        return String.format("Elo %+.1f ± %.1f", elo, error);
+    }
+
+    private synchronized void printSummary() {
+        int played = wins + losses + draws;
+        double minutes = (System.nanoTime() - startNanos) / 60e9;
+        System.out.println();
+        System.out.println(engineA.name + " vs " + engineB.name + ": " + played + " games, +" + wins + " -" + losses + " =" + draws);
+        if (played > 0) System.out.println(eloString());
+        System.out.printf("%.2f minutes, %.1f games/min%n", minutes, played / Math.max(minutes, 1e-9));
+    }
+
+    // ###########################################################################
+
+    private static List<String> loadOpenings(Path file) throws IOException {
+        List<String> openings = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            openings.add(line);
+        }
+        return openings;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: MatchRunner <engine A> <engine B> [max games] [base ms+increment ms] [openings file]");
+            System.out.println("Engines: 'simple' or 'nnue:<weights file>'");
+            return;
+        }
+        int maxGames = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        long baseMs = 10_000, incrementMs = 100;
+        if (args.length > 3) {
+            String[] tc = args[3].split("\\+");
+            baseMs = Long.parseLong(tc[0]);
+            incrementMs = tc.length > 1 ? Long.parseLong(tc[1]) : 0;
+        }
+        List<String> openings = args.length > 4 ? loadOpenings(Path.of(args[4])) : List.of(DEFAULT_OPENINGS);
+
+        // Same spec twice gets told apart by position, otherwise the output is unreadable.
+        String nameA = args[0].equals(args[1]) ? args[0] + " (A)" : args[0];
+        String nameB = args[0].equals(args[1]) ? args[1] + " (B)" : args[1];
+        new MatchRunner(new EngineSpec(nameA, args[0]), new EngineSpec(nameB, args[1]), baseMs, incrementMs, openings, maxGames).run();
+    }
+}
@@ -0,0 +1,60 @@
+package Search;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class SearchEvents {
+
+    // Custom JDK Flight Recorder events, so a slow move can be pulled apart in JMC afterwards:
+    // was it one iteration that blew up, or aspiration windows failing over and over?
+    // Record with -XX:StartFlightRecording=filename=skakbot.jfr (or from JMC); the events show up under 'Skakbot'.
+    // When recording is off, begin()/commit() are close to free, and they're only called once per iteration anyway, never per node.
+
+    @Name("skakbot.SearchIteration")
+    @Label("Search Iteration")
+    @Category({"Skakbot", "Search"})
+    @Description("One iteration of the iterative deepening search")
+    public static class Iteration extends Event {
+        @Label("Depth")
+        public int depth;
+
+        @Label("Completed")
+        @Description("False if the time ran out in the middle of the iteration")
+        public boolean completed;
+
+        @Label("Nodes")
+        public long nodes;
+
+        @Label("Score")
+        @Description("Centipawns, from white's point of view")
+        public int score;
+
+        @Label("Best Move")
+        public String bestMove;
+    }
+
+    @Name("skakbot.AspirationResearch")
+    @Label("Aspiration Re-search")
+    @Category({"Skakbot", "Search"})
+    @Description("The score fell outside the aspiration window, so the iteration was searched again with a wider one")
+    public static class AspirationResearch extends Event {
+        @Label("Depth")
+        public int depth;
+
+        @Label("Alpha")
+        public int alpha;
+
+        @Label("Beta")
+        public int beta;
+
+        @Label("Score")
+        @Description("The score that fell outside the window")
+        public int score;
+
+        @Label("Fail High")
+        public boolean failHigh;
+    }
+}
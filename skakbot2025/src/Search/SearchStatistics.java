@@ -0,0 +1,175 @@
+package Search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SearchStatistics {
+
+    // Everything we'd like to know about how a search went, broken down per iteration of the iterative deepening.
+    // One of these belongs to one search thread, so the counters are plain longs; no atomics, no locks, nothing for
+    // parallel searches (or the match runner's games) to fight over. The parallel search adds its threads' counters up with add().
+    // When a search is done, the finished iterations are handed to SearchTelemetry in one go.
+
+    // Note: there's no quiescence search yet, so 'leaf nodes' are the horizon nodes that get a static evaluation.
+    // That's the share that would move into a quiescence search once there is one.
+
+    public record Iteration(int depth, boolean completed, long nodes, long leafNodes,
+                            long ttProbes, long ttHits, long ttCutoffs,
+                            long betaCutoffs, long firstMoveCutoffs,
+                            int failHighs, int failLows,
+                            long nanos, int score, int bestMove) {
+
+        public long nodesPerSecond() {
+            return nodes * 1_000_000_000L / Math.max(1, nanos);
+        }
+
+        public double ttHitRate() {
+            return ttProbes == 0 ? 0.0 : (double) ttHits / ttProbes;
+        }
+
+        public double ttCutoffRate() {
+            return ttProbes == 0 ? 0.0 : (double) ttCutoffs / ttProbes;
+        }
+
+        // How often the first move searched was good enough for a cutoff. Close to 1 means the move ordering is doing its job.
+        public double firstMoveCutoffRate() {
+            return betaCutoffs == 0 ? 0.0 : (double) firstMoveCutoffs / betaCutoffs;
+        }
+
+        public double leafNodeShare() {
+            return nodes == 0 ? 0.0 : (double) leafNodes / nodes;
+        }
+    }
+
+    // Counters for the iteration in progress.
+    private long nodes, leafNodes, ttProbes, ttHits, ttCutoffs, betaCutoffs, firstMoveCutoffs;
+    private int failHighs, failLows;
+    private long searchStart, iterationStart;
+    private int currentDepth;
+    private final List<Iteration> iterations = new ArrayList<>();
+
+    public void startSearch() {
+        iterations.clear();
+        searchStart = System.nanoTime();
+    }
+
+    public void startIteration(int depth) {
+        nodes = leafNodes = ttProbes = ttHits = ttCutoffs = betaCutoffs = firstMoveCutoffs = 0;
+        failHighs = failLows = 0;
+        currentDepth = depth;
+        iterationStart = System.nanoTime();
+    }
+
+    // Also called for an iteration that ran out of time, with completed = false, so its nodes still count towards the totals.
+    public Iteration finishIteration(boolean completed, int score, int bestMove) {
+        Iteration it = new Iteration(currentDepth, completed, nodes, leafNodes, ttProbes, ttHits, ttCutoffs,
+                betaCutoffs, firstMoveCutoffs, failHighs, failLows, System.nanoTime() - iterationStart, score, bestMove);
+        iterations.add(it);
+        return it;
+    }
+
+    // ###########################################################################
+    // COUNTING, called from the search itself.
+
+    public void node() {
+        nodes++;
+    }
+
+    // For the parallel search, which counts on every thread and adds it all up here once per iteration.
+    // other's iteration has to be over, or at least not running on another thread.
+    public void add(SearchStatistics other) {
+        nodes += other.nodes;
+        leafNodes += other.leafNodes;
+        ttProbes += other.ttProbes;
+        ttHits += other.ttHits;
+        ttCutoffs += other.ttCutoffs;
+        betaCutoffs += other.betaCutoffs;
+        firstMoveCutoffs += other.firstMoveCutoffs;
+    }
+
+    public void leaf() {
+        leafNodes++;
+    }
+
+    public void ttProbe(boolean hit) {
+        ttProbes++;
+        if (hit) ttHits++;
+    }
+
+    public void ttCutoff() {
+        ttCutoffs++;
+    }
+
+    public void betaCutoff(boolean firstMove) {
+        betaCutoffs++;
+        if (firstMove) firstMoveCutoffs++;
+    }
+
+    // The root score fell outside the aspiration window and the iteration has to be searched again.
+    public void aspirationFail(boolean failHigh) {
+        if (failHigh) failHighs++;
+        else failLows++;
+    }
+
+    // ###########################################################################
+    // RESULTS.
+
+    public List<Iteration> getIterations() {
+        return Collections.unmodifiableList(iterations);
+    }
+
+    public long getSearchNanos() {
+        return System.nanoTime() - searchStart;
+    }
+
+    public long getTotalNodes() {
+        long total = 0;
+        for (Iteration it : iterations) total += it.nodes;
+        return total;
+    }
+
+    public long getTotalLeafNodes() {
+        long total = 0;
+        for (Iteration it : iterations) total += it.leafNodes;
+        return total;
+    }
+
+    public long getTotalCutoffs() {
+        long total = 0;
+        for (Iteration it : iterations) total += it.betaCutoffs + it.ttCutoffs;
+        return total;
+    }
+
+    public int getTotalFailHighs() {
+        int total = 0;
+        for (Iteration it : iterations) total += it.failHighs;
+        return total;
+    }
+
+    public int getTotalFailLows() {
+        int total = 0;
+        for (Iteration it : iterations) total += it.failLows;
+        return total;
+    }
+
+    // The last iteration that actually finished, or null if not even depth 1 did.
+    public Iteration getLastCompleted() {
+        for (int i = iterations.size() - 1; i >= 0; i--) {
+            if (iterations.get(i).completed) return iterations.get(i);
+        }
+        return null;
+    }
+
+    // Nodes of the last finished iteration divided by those of the one before it; how much bigger each extra ply makes the tree.
+    public double getEffectiveBranchingFactor() {
+        Iteration last = null, previous = null;
+        for (Iteration it : iterations) {
+            if (!it.completed) continue;
+            previous = last;
+            last = it;
+        }
+        if (last == null || previous == null || previous.nodes == 0) return 0.0;
+        return (double) last.nodes / previous.nodes;
+    }
+}
@@ -0,0 +1,121 @@
+package Search;
+
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SearchTelemetry implements SearchTelemetryMXBean {
+
+    // Where finished searches are reported, so engine health can be watched while it's running.
+    // - Always: the platform MBean server, as 'skakbot:type=SearchTelemetry'.
+    // - Optionally: one JSON object per iteration, appended to the file given with -Dskakbot.searchLog=...
+    // Searches only report once they're done, so this is touched once per move, never per node.
+
+    public static final String OBJECT_NAME = "skakbot:type=SearchTelemetry";
+
+    private static SearchTelemetry instance;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong totalNodes = new AtomicLong();
+    private volatile Snapshot last;
+    private final BufferedWriter log;
+
+    // Everything the MBean reads, built once per search so the getters never see half of one search and half of another.
+    private record Snapshot(int depth, long nodes, long nanos, double ebf, double ttHitRate, double ttCutoffRate,
+                            double firstMoveCutoffRate, double leafShare, int failHighs, int failLows,
+                            long[] iterationNodes, long[] iterationMillis) {}
+
+    private SearchTelemetry(BufferedWriter log) {
+        this.log = log;
+    }
+
+    public static synchronized SearchTelemetry get() {
+        if (instance == null) {
+            instance = new SearchTelemetry(openLog());
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (Exception e) {
+                System.out.println("Couldn't register the search telemetry MBean: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    private static BufferedWriter openLog() {
+        String path = System.getProperty("skakbot.searchLog");
+        if (path == null) return null;
+        try {
+            return Files.newBufferedWriter(Path.of(path), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Couldn't open the search log: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void publish(SearchStatistics stats) {
+        List<SearchStatistics.Iteration> iterations = stats.getIterations();
+        long searchId = searches.incrementAndGet();
+        totalNodes.addAndGet(stats.getTotalNodes());
+
+        long[] nodes = new long[iterations.size()];
+        long[] millis = new long[iterations.size()];
+        for (int i = 0; i < iterations.size(); i++) {
+            nodes[i] = iterations.get(i).nodes();
+            millis[i] = iterations.get(i).nanos() / 1_000_000;
+        }
+
+        SearchStatistics.Iteration done = stats.getLastCompleted();
+        long totalLeaves = stats.getTotalLeafNodes(), allNodes = stats.getTotalNodes();
+        last = new Snapshot(done == null ? 0 : done.depth(), allNodes, stats.getSearchNanos(), stats.getEffectiveBranchingFactor(),
+                done == null ? 0.0 : done.ttHitRate(), done == null ? 0.0 : done.ttCutoffRate(),
+                done == null ? 0.0 : done.firstMoveCutoffRate(), allNodes == 0 ? 0.0 : (double) totalLeaves / allNodes,
+                stats.getTotalFailHighs(), stats.getTotalFailLows(), nodes, millis);
+
+        if (log != null) writeLog(searchId, iterations);
+    }
+
+    private synchronized void writeLog(long searchId, List<SearchStatistics.Iteration> iterations) {
+        try {
+            long timestamp = System.currentTimeMillis();
+            for (SearchStatistics.Iteration it : iterations) {
+                log.write(String.format(Locale.ROOT,
+                        "{\"time\":%d,\"search\":%d,\"thread\":\"%s\",\"depth\":%d,\"completed\":%b,\"nodes\":%d,\"nps\":%d,\"ms\":%.3f," +
+                        "\"leafShare\":%.4f,\"ttProbes\":%d,\"ttHitRate\":%.4f,\"ttCutoffRate\":%.4f,\"betaCutoffs\":%d,\"firstMoveCutoffRate\":%.4f," +
+                        "\"failHighs\":%d,\"failLows\":%d,\"score\":%d}",
+                        timestamp, searchId, Thread.currentThread().getName(), it.depth(), it.completed(), it.nodes(), it.nodesPerSecond(),
+                        it.nanos() / 1e6, it.leafNodeShare(), it.ttProbes(), it.ttHitRate(), it.ttCutoffRate(), it.betaCutoffs(),
+                        it.firstMoveCutoffRate(), it.failHighs(), it.failLows(), it.score()));
+                log.newLine();
+            }
+            log.flush();
+        } catch (IOException e) {
+            System.out.println("Couldn't write to the search log: " + e.getMessage());
+        }
+    }
+
+    // ###########################################################################
+    // MBEAN.
+
+    @Override public long getSearches() { return searches.get(); }
+    @Override public long getTotalNodes() { return totalNodes.get(); }
+    @Override public int getLastDepth() { return last == null ? 0 : last.depth; }
+    @Override public long getLastNodes() { return last == null ? 0 : last.nodes; }
+    @Override public long getLastNodesPerSecond() { return last == null ? 0 : last.nodes * 1_000_000_000L / Math.max(1, last.nanos); }
+    @Override public long getLastSearchMillis() { return last == null ? 0 : last.nanos / 1_000_000; }
+    @Override public double getLastEffectiveBranchingFactor() { return last == null ? 0.0 : last.ebf; }
+    @Override public double getLastTTHitRate() { return last == null ? 0.0 : last.ttHitRate; }
+    @Override public double getLastTTCutoffRate() { return last == null ? 0.0 : last.ttCutoffRate; }
+    @Override public double getLastFirstMoveCutoffRate() { return last == null ? 0.0 : last.firstMoveCutoffRate; }
+    @Override public double getLastLeafNodeShare() { return last == null ? 0.0 : last.leafShare; }
+    @Override public int getLastAspirationFailHighs() { return last == null ? 0 : last.failHighs; }
+    @Override public int getLastAspirationFailLows() { return last == null ? 0 : last.failLows; }
+    @Override public long[] getLastIterationNodes() { return last == null ? new long[0] : last.iterationNodes.clone(); }
+    @Override public long[] getLastIterationMillis() { return last == null ? new long[0] : last.iterationMillis.clone(); }
+}
@@ -0,0 +1,36 @@
+package Search;
+
+// What jconsole / VisualVM / any JMX client sees under 'skakbot:type=SearchTelemetry'.
+// 'Last' means the most recent search to finish, from whichever ChessAI finished it.
+public interface SearchTelemetryMXBean {
+
+    long getSearches();
+
+    long getTotalNodes();
+
+    int getLastDepth();
+
+    long getLastNodes();
+
+    long getLastNodesPerSecond();
+
+    long getLastSearchMillis();
+
+    double getLastEffectiveBranchingFactor();
+
+    double getLastTTHitRate();
+
+    double getLastTTCutoffRate();
+
+    double getLastFirstMoveCutoffRate();
+
+    double getLastLeafNodeShare();
+
+    int getLastAspirationFailHighs();
+
+    int getLastAspirationFailLows();
+
+    long[] getLastIterationNodes();
+
+    long[] getLastIterationMillis();
+}
@@ -0,0 +1,147 @@
+package Search;
+
+public class TimeManager {
+
+    // Decides how long a single search is allowed to run.
+    // The soft limit is what we *aim* to spend; once it's passed we don't start another iteration.
+    // The hard limit is the emergency brake; once it's passed the search is aborted mid-iteration.
+
+    // nanoTime() isn't free, and calling it on every node adds up when we're doing millions of them per second.
+    // So we only look at the clock every N nodes. Must be a power of two.
+    public static final int NODES_BETWEEN_TIME_CHECKS = 2048;
+
+    private static final long MOVE_OVERHEAD_MS = 50; // Safety margin for GUI updates, thread hand-off, etc.
+    private static final int MIN_MOVES_TO_GO = 15;
+    private static final int MAX_MOVES_TO_GO = 40;
+    private static final int STABLE_ITERATIONS = 3; // Same best move this many iterations in a row = stable.
+    private static final int SCORE_DROP_MARGIN = 50; // Centipawns; a drop this large means we should think longer.
+
+    private final long softLimit;
+    private final long hardLimit;
+    // Optional cap on the nodes, on top of the time limits (the analysis service gives every job both). checkTime() is called once
+    // per node, so that's where they're counted. YoungBrothersSearch reads the clock itself, and counts its threads' nodes against getNodeLimit().
+    private long nodeLimit = Long.MAX_VALUE;
+    private long nodes;
+    private int depthLimit = Integer.MAX_VALUE;
+
+    private long start;
+    private int nodesUntilCheck = NODES_BETWEEN_TIME_CHECKS;
+    private boolean hardLimitReached;
+
+    private int lastBestMove = -1;
+    private int lastScore;
+    private int stableIterations;
+    private double softScale = 1.0;
+
+    private TimeManager(long softLimit, long hardLimit) {
+        this.softLimit = softLimit;
+        this.hardLimit = hardLimit;
+    }
+
+    // Builds the limits from the clock.
+    // The idea: split what's left on the clock over the moves we expect to still play, add most of the increment,
+    // and allow up to four times that when the position turns out to be difficult.
+    public static TimeManager forClock(long remainingMs, long incrementMs, int moveNumber) {
+        long available = Math.max(1, remainingMs - MOVE_OVERHEAD_MS);
+        int movesToGo = Math.max(MIN_MOVES_TO_GO, MAX_MOVES_TO_GO - moveNumber / 2);
+
+        long soft = available / movesToGo + incrementMs * 3 / 4;
+        long hard = Math.min(soft * 4, available / 3 + incrementMs);
+        hard = Math.min(hard, available);
+        soft = Math.min(soft, hard);
+
+        return new TimeManager(soft * 1_000_000L, hard * 1_000_000L);
+    }
+
+    // A fixed per-move budget, for when there's no clock to speak of.
+    public static TimeManager fixed(long nanos) {
+        return new TimeManager(nanos, nanos);
+    }
+
+    // No clock at all, so the search does exactly the same thing every time it's run on the same position with an empty TT:
+    // give it withNodeLimit() and/or withDepthLimit() (or a stop flag), or it runs all the way to ChessAI.MAX_DEPTH.
+    // That's what Bench uses, so that node counts can be compared between commits.
+    public static TimeManager unlimited() {
+        return new TimeManager(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    // The same limits, plus: stop after this many nodes.
+    public TimeManager withNodeLimit(long nodes) {
+        nodeLimit = nodes;
+        return this;
+    }
+
+    // The same limits, plus: don't start an iteration deeper than this.
+    public TimeManager withDepthLimit(int depth) {
+        depthLimit = depth;
+        return this;
+    }
+
+    public void start() {
+        start = System.nanoTime();
+        nodes = 0;
+        nodesUntilCheck = NODES_BETWEEN_TIME_CHECKS;
+        hardLimitReached = false;
+        lastBestMove = -1;
+        stableIterations = 0;
+        softScale = 1.0;
+    }
+
+    // Called once per node. Only actually reads the clock every NODES_BETWEEN_TIME_CHECKS calls.
+    public boolean checkTime() {
+        if (++nodes > nodeLimit) hardLimitReached = true;
+        if (--nodesUntilCheck > 0) return hardLimitReached;
+        nodesUntilCheck = NODES_BETWEEN_TIME_CHECKS;
+        if (System.nanoTime() - start > hardLimit) hardLimitReached = true;
+        return hardLimitReached;
+    }
+
+    // Checked between iterations; if we're already past the (scaled) soft limit, the next iteration almost certainly won't finish.
+    public boolean canStartIteration() {
+        if (hardLimitReached || nodes >= nodeLimit) return false;
+        long elapsed = System.nanoTime() - start;
+        return elapsed < Math.min((long) (softLimit * softScale), hardLimit);
+    }
+
+    // The score should be from the point of view of the side to move, so that a 'drop' means things are getting worse for us.
+    public void iterationFinished(int bestMove, int score) {
+        if (bestMove == lastBestMove) {
+            stableIterations++;
+        } else {
+            stableIterations = 0;
+        }
+
+        boolean scoreDropped = lastBestMove != -1 && lastScore - score >= SCORE_DROP_MARGIN;
+
+        softScale = 1.0;
+        if (stableIterations >= STABLE_ITERATIONS) softScale *= 0.5; // Nothing's changing, so wrap it up.
+        if (scoreDropped) softScale *= 2.0; // Something went wrong; spend extra time looking for a way out.
+
+        lastBestMove = bestMove;
+        lastScore = score;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - start;
+    }
+
+    public int getDepthLimit() {
+        return depthLimit;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getNodeLimit() {
+        return nodeLimit;
+    }
+
+    public long getSoftLimit() {
+        return softLimit;
+    }
+
+    public long getHardLimit() {
+        return hardLimit;
+    }
+}
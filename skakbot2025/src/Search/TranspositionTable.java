@@ -0,0 +1,229 @@
+package Search;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class TranspositionTable implements AutoCloseable {
+
+    // The transposition table, off the Java heap: one big MemorySegment, so a table of 8 GB is just -Dskakbot.hash=8192,
+    // without a bigger -Xmx and without handing the GC billions of bytes to scan. The memory is ours from the constructor
+    // until close() (ChessAI.shutdown() does that); any access after that throws instead of touching freed memory.
+    //
+    // Entries are two longs: the data, and the key xor'ed with the data. A probe only believes an entry if the two xor back to
+    // the key it's looking for, so if two threads write the same entry at once, and the halves get mixed up, it's just a miss.
+    // No locks and no atomics (Hyatt & Mann's lockless hashing). Entries come in buckets of two, 32 bytes:
+    // the first keeps the deepest result, the second always takes the newest.
+    //
+    // Data layout: value (bits 0-31), depth (32-39), flag (40-41), best move (42-57, compact, 0xFFFF for none), generation (58-63).
+    // Nothing is cleared between searches; newSearch() bumps the generation instead, so the old entries can still be used,
+    // but give way to the new ones.
+    //
+    // save() writes the whole table to a snapshot file, and load() maps one straight back in (copy-on-write, so the file itself
+    // never changes): no parsing, and only the pages the search actually touches are ever read from disk.
+    // Snapshot layout, in the machine's byte order, since the entries are written as they are (the magic catches a mismatch):
+    // 0: long magic "SKTTSNAP"
+    // 8: int format version
+    // 12: int engine version (ChessAI.ENGINE_VERSION)
+    // 16: long evaluation hash (Evaluator.evalHash())
+    // 24: long table size in bytes
+    // 32: long generation
+    // The rest of the first 4 KB is zeros, so the entries start on a page boundary and can be mapped as they are.
+
+    private static final int ENTRY_BYTES = 16;
+    private static final int BUCKET_BYTES = 2 * ENTRY_BYTES;
+    private static final long LARGE_PAGE = 2L << 20; // 2 MB, the usual transparent huge page size on x86-64 Linux.
+    private static final int MADV_HUGEPAGE = 14;
+
+    private static final long NO_MOVE = 0xFFFFL;
+
+    private static final long SNAPSHOT_MAGIC = 0x534B5454534E4150L; // "SKTTSNAP"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long SNAPSHOT_HEADER = 4096;
+    public static final String SNAPSHOT_EXTENSION = ".sktt";
+
+    private final Arena arena;
+    private final MemorySegment table;
+    private final int bucketShift;
+    private long generation;
+
+    // The size is rounded down to a power of two, and is at least two buckets.
+    // With largePages, the table is aligned to 2 MB and Linux is asked to back it with huge pages (fewer TLB misses on big tables).
+    // That's only a hint; if the OS won't, or it isn't Linux, we carry on with normal pages.
+    public TranspositionTable(long bytes, boolean largePages) {
+        this(Arena.ofShared(), bytes, largePages);
+    }
+
+    private TranspositionTable(Arena arena, long bytes, boolean largePages) {
+        // Zeroed, and zero is an empty entry.
+        this(arena, arena.allocate(Long.highestOneBit(Math.max(2, bytes / BUCKET_BYTES)) * BUCKET_BYTES, largePages ? LARGE_PAGE : BUCKET_BYTES));
+        if (largePages) adviseHugePages(table);
+    }
+
+    private TranspositionTable(Arena arena, MemorySegment table) {
+        this.arena = arena;
+        this.table = table;
+        this.bucketShift = 64 - Long.numberOfTrailingZeros(table.byteSize() / BUCKET_BYTES);
+    }
+
+    private static void adviseHugePages(MemorySegment segment) {
+        try {
+            Linker linker = Linker.nativeLinker();
+            MemorySegment madvise = linker.defaultLookup().find("madvise").orElse(null);
+            if (madvise == null) return;
+            MethodHandle handle = linker.downcallHandle(madvise,
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+            int result = (int) handle.invokeExact(segment, segment.byteSize(), MADV_HUGEPAGE);
+            if (result != 0) System.out.println("madvise(MADV_HUGEPAGE) failed; the transposition table uses normal pages");
+        } catch (Throwable e) {
+            System.out.println("Couldn't ask for huge pages (" + e + "); the transposition table uses normal pages");
+        }
+    }
+
+    // ###########################################################################
+    // PROBING AND STORING.
+
+    // ChessAI's hashes multiply each bitboard by its key, so their low bits only depend on the pieces on the low squares;
+    // a table indexed by them would have a few crowded buckets and lots of empty ones. Multiplying once more and taking
+    // the top bits mixes the whole hash into the index.
+    private long bucketOffset(long key) {
+        return ((key * 0x9E3779B97F4A7C15L) >>> bucketShift) * BUCKET_BYTES;
+    }
+
+    // The data of the entry for this key, or 0 if there isn't one; read it with value(), depth(), flag() and bestMove().
+    public long probe(long key) {
+        long offset = bucketOffset(key);
+        for (int i = 0; i < 2; i++, offset += ENTRY_BYTES) {
+            long data = table.get(ValueLayout.JAVA_LONG, offset + 8);
+            if (data != 0L && (table.get(ValueLayout.JAVA_LONG, offset) ^ data) == key) return data;
+        }
+        return 0L;
+    }
+
+    // flag is 0 for an exact value, 1 for a lower bound and 2 for an upper bound; bestMove is a compact move, or -1.
+    public void store(long key, int depth, int value, int flag, int bestMove) {
+        long data = (value & 0xFFFFFFFFL) | (long) Math.min(depth, 255) << 32 | (long) flag << 40
+                | (bestMove == -1 ? NO_MOVE : bestMove & NO_MOVE) << 42 | generation << 58;
+
+        // The first entry, unless it holds something deeper from this search about another position; then the second.
+        long offset = bucketOffset(key);
+        long old = table.get(ValueLayout.JAVA_LONG, offset + 8);
+        boolean samePosition = old != 0L && (table.get(ValueLayout.JAVA_LONG, offset) ^ old) == key;
+        if (!samePosition && old != 0L && generation(old) == generation && depth(old) > depth) offset += ENTRY_BYTES;
+
+        table.set(ValueLayout.JAVA_LONG, offset, key ^ data);
+        table.set(ValueLayout.JAVA_LONG, offset + 8, data);
+    }
+
+    public static int value(long data) {
+        return (int) data;
+    }
+
+    public static int depth(long data) {
+        return (int) (data >>> 32) & 0xFF;
+    }
+
+    public static int flag(long data) {
+        return (int) (data >>> 40) & 3;
+    }
+
+    public static int bestMove(long data) {
+        long move = (data >>> 42) & NO_MOVE;
+        return move == NO_MOVE ? -1 : (int) move;
+    }
+
+    private static long generation(long data) {
+        return data >>> 58;
+    }
+
+    // ###########################################################################
+    // HOUSEKEEPING.
+
+    public void newSearch() {
+        generation = (generation + 1) & 63;
+    }
+
+    // Forgets everything, e.g. between the games of a match, so one game's search doesn't leak into the next.
+    public void clear() {
+        table.fill((byte) 0);
+        generation = 0;
+    }
+
+    public long sizeBytes() {
+        return table.byteSize();
+    }
+
+    public long capacity() {
+        return table.byteSize() / ENTRY_BYTES;
+    }
+
+    // ###########################################################################
+    // SNAPSHOTS.
+
+    // Writes the table to path, tagged with the engine version and evaluation it was searched with.
+    // It goes to a temporary file first, which then replaces the old snapshot, so a crash halfway never leaves a broken one behind.
+    // A search can keep going meanwhile; entries it changes while they're being copied just won't validate when loaded.
+    public void save(Path path, int engineVersion, long evalHash) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena mapping = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, SNAPSHOT_HEADER + table.byteSize(), mapping);
+            file.set(ValueLayout.JAVA_LONG, 0, SNAPSHOT_MAGIC);
+            file.set(ValueLayout.JAVA_INT, 8, SNAPSHOT_VERSION);
+            file.set(ValueLayout.JAVA_INT, 12, engineVersion);
+            file.set(ValueLayout.JAVA_LONG, 16, evalHash);
+            file.set(ValueLayout.JAVA_LONG, 24, table.byteSize());
+            file.set(ValueLayout.JAVA_LONG, 32, generation);
+            file.asSlice(SNAPSHOT_HEADER).copyFrom(table);
+            file.force();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Maps a snapshot written by save() back in, at the size it was saved with. Returns null if there's no file,
+    // and throws if it isn't a snapshot, or it's from another engine version or evaluation (its scores would be wrong for this one).
+    public static TranspositionTable load(Path path, int engineVersion, long evalHash) throws IOException {
+        if (!Files.isRegularFile(path)) return null;
+
+        Arena arena = Arena.ofShared();
+        // A PRIVATE mapping needs a channel that could write, even though it never does.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < SNAPSHOT_HEADER) throw new IOException("Not a TT snapshot: " + path);
+            MemorySegment header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER, arena);
+            if (header.get(ValueLayout.JAVA_LONG, 0) != SNAPSHOT_MAGIC || header.get(ValueLayout.JAVA_INT, 8) != SNAPSHOT_VERSION) {
+                throw new IOException("Not a TT snapshot (or the wrong version): " + path);
+            }
+            if (header.get(ValueLayout.JAVA_INT, 12) != engineVersion || header.get(ValueLayout.JAVA_LONG, 16) != evalHash) {
+                throw new IOException("TT snapshot is from another engine version or evaluation: " + path);
+            }
+            long bytes = header.get(ValueLayout.JAVA_LONG, 24);
+            if (bytes < 2 * BUCKET_BYTES || Long.bitCount(bytes / BUCKET_BYTES) != 1 || bytes % BUCKET_BYTES != 0
+                    || channel.size() != SNAPSHOT_HEADER + bytes) {
+                throw new IOException("TT snapshot has the wrong size: " + path);
+            }
+            // PRIVATE: copy-on-write, so the search can write to the table without touching the file.
+            TranspositionTable tt = new TranspositionTable(arena, channel.map(FileChannel.MapMode.PRIVATE, SNAPSHOT_HEADER, bytes, arena));
+            tt.generation = header.get(ValueLayout.JAVA_LONG, 32) & 63;
+            return tt;
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    // Frees the memory. Any probe or store after this throws an IllegalStateException.
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
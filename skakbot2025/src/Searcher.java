@@ -0,0 +1,326 @@
+import Board.AttackMaps;
+import Board.BitboardBoard;
+import Board.PositionStack;
+import Board.UndoStack;
+import Evaluation.Evaluator;
+import Search.SearchStatistics;
+import Search.TimeManager;
+import Search.TranspositionTable;
+import Tablebase.Tablebases;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class Searcher {
+
+    // The alpha-beta node function, and everything one thread needs to run it: the undo and copy-make stacks, the attack maps,
+    // the hashes along the path for draw detection, and an evaluator that follows the moves. ChessAI has one of these for its
+    // normal search; YoungBrothersSearch has one per task that's running, and they all probe and store the same TT.
+    // Scores are from white's point of view: white maximises, black minimises.
+
+    // Extensions. MAX_DEPTH + MAX_EXTENSIONS has to stay below MAX_PLY.
+    private static final int MAX_EXTENSIONS = 16; // Per path from the root.
+    private static final int SINGULAR_MIN_DEPTH = 4;
+    private static final int SINGULAR_MARGIN = 5; // Centipawns per ply of depth the TT move has to beat the rest by.
+
+    // What split() returns when it leaves the rest of the moves to us.
+    static final ScoredMove NOT_SPLIT = new ScoredMove(-1, 0);
+
+    static final class ScoredMove { final int move, score; ScoredMove(int m,int s){move=m;score=s;} }
+
+    final Evaluator evaluator;
+    final SearchStatistics stats;
+    private final TranspositionTable transpositionTable;
+    private TimeManager timeManager;
+    private AtomicBoolean stopFlag;
+    private int maxExtensions; // Per path from the root, for the current iteration: half its depth, at most MAX_EXTENSIONS.
+
+    // Draw detection. hashStack holds the hashes of the game so far followed by the current search path, one per ply,
+    // so a repetition is just a scan back over the same side's earlier positions, and only as far as the last capture or pawn move.
+    // Sized once per search; nothing in the tree allocates or boxes.
+    private long[] hashStack = new long[256];
+    private int rootIndex; // Where the current search path starts in hashStack.
+    private long currentHash;
+    private final UndoStack undoStack = new UndoStack(ChessAI.MAX_PLY + 1);
+    // -Dskakbot.copyMake=true searches with copy-make (a PositionStack) instead of make/unmake; see MakeMoveBenchmark.
+    private boolean copyMake = Boolean.getBoolean("skakbot.copyMake");
+    private final PositionStack positionStack = new PositionStack(ChessAI.MAX_PLY + 1);
+    private final AttackMaps attackMaps = new AttackMaps(ChessAI.MAX_PLY + 1);
+    private final long[] tablebaseScratch = new long[BitboardBoard.BOARD_SIZE]; // For Tablebases.probe(), so it never allocates.
+
+    // Root moves left out of the current search (Multi-PV).
+    private final int[] excludedRootMoves = new int[256];
+    private int excludedCount;
+
+    Searcher(Evaluator evaluator, TranspositionTable transpositionTable, SearchStatistics stats) {
+        this.evaluator = evaluator;
+        this.transpositionTable = transpositionTable;
+        this.stats = stats;
+    }
+
+    // history and halfmoveClock are as for ChessAI.findBestMove(). The evaluator isn't reset here; the caller does that.
+    void startSearch(long[] state, long[] history, int halfmoveClock, TimeManager timeManager, AtomicBoolean stopFlag) {
+        this.timeManager = timeManager;
+        this.stopFlag = stopFlag;
+        undoStack.clear(); // An aborted search leaves its records behind.
+        positionStack.clear();
+        attackMaps.clear();
+        currentHash = ChessAI.computeZobrist(state);
+
+        // Only the part of the history since the last irreversible move can ever repeat.
+        int relevant = Math.min(history.length, halfmoveClock);
+        if (hashStack.length < relevant + ChessAI.MAX_PLY + 1) hashStack = new long[relevant + ChessAI.MAX_PLY + 1];
+        System.arraycopy(history, history.length - relevant, hashStack, 0, relevant);
+        rootIndex = relevant;
+    }
+
+    // Picks up another searcher's search at this ply of its path, so it can carry on here on another thread.
+    // board is our own copy of its position there; the rest is copied into the arrays we already have.
+    void enter(Searcher from, long[] board, int ply) {
+        if (hashStack.length < from.hashStack.length) hashStack = new long[from.hashStack.length];
+        System.arraycopy(from.hashStack, 0, hashStack, 0, from.rootIndex + ply + 1);
+        rootIndex = from.rootIndex;
+        currentHash = from.currentHash;
+        undoStack.clear();
+        positionStack.clear();
+        attackMaps.clear();
+        evaluator.reset(board);
+    }
+
+    void startIteration(int depth) {
+        stats.startIteration(depth);
+        maxExtensions = Math.min(MAX_EXTENSIONS, depth / 2);
+    }
+
+    void excludeRootMove(int move) {
+        excludedRootMoves[excludedCount++] = move;
+    }
+
+    void clearExcludedRootMoves() {
+        excludedCount = 0;
+    }
+
+    void setCopyMake(boolean copyMake) {
+        this.copyMake = copyMake;
+    }
+
+    // Checked at every node; true ends the search, which then comes back with null all the way up.
+    protected boolean shouldStop() {
+        return stopFlag.get() || timeManager.checkTime();
+    }
+
+    // Called once the first move at a node has been searched without a cutoff, for the parallel search to hand the rest of them,
+    // moves[from] on, to other threads. Returns the best of all the node's moves (the first one's score is bestScore),
+    // null if the search was stopped, or NOT_SPLIT to search them here as usual, which is all a single thread ever does.
+    protected ScoredMove split(long[] state, int[] moves, int from, int depth, int alpha, int beta, boolean maxPlayer, int ply,
+                               int halfmoveClock, int extensions, int singularMove, int bestScore, int bestMove) {
+        return NOT_SPLIT;
+    }
+
+    ScoredMove minimax(
+            long[]              state,
+            int                 depth,
+            int                 alpha,
+            int                 beta,
+            boolean             maxPlayer,
+            int                 ply,
+            int                 halfmoveClock,
+            int                 extensions,     // How many plies have been added on the way down to here.
+            int                 excludedMove    // Left out of this node for a singular extension check (compact), or -1.
+    ) {
+        if (shouldStop()) return null;
+        stats.node();
+
+        // Repetitions and the fifty-move rule are draws. Not at the root, though; we still need an actual move to play.
+        hashStack[rootIndex + ply] = currentHash;
+        if (ply > 0 && (halfmoveClock >= ChessAI.FIFTY_MOVE_PLIES || isRepetition(ply, halfmoveClock))) {
+            return new ScoredMove(-1, 0);
+        }
+
+        if (depth == 0) {
+            stats.leaf();
+            // The parent has usually worked out one side's attacks already, for the check test.
+            int stand = evaluator.evaluate(state, attackMaps.get(ply, state, true), attackMaps.get(ply, state, false));
+            return new ScoredMove(-1, stand);
+        }
+
+        // With few enough pieces left, the tablebases know the exact outcome, so the whole subtree can be skipped.
+        // Not at the root, though; we still need an actual move to play.
+        if (ply > 0 && Long.bitCount(state[0]) <= Tablebases.maxPieces()) {
+            int tb = Tablebases.probe(state, tablebaseScratch);
+            if (tb != Tablebases.NOT_FOUND) {
+                return new ScoredMove(-1, tablebaseScore(tb, maxPlayer, ply));
+            }
+        }
+
+        // With moves left out (Multi-PV at the root, or a singular extension check), the TT entry is about a different set of moves;
+        // don't use it or overwrite it.
+        boolean excludingRoot = ply == 0 && excludedCount > 0;
+        boolean excluding = excludingRoot || excludedMove != -1;
+        long ent = transpositionTable.probe(currentHash);
+        boolean ttHit = ent != 0L;
+        int ttDepth = TranspositionTable.depth(ent), ttValue = fromTTScore(TranspositionTable.value(ent), ply);
+        int ttFlag = TranspositionTable.flag(ent), ttMove = TranspositionTable.bestMove(ent);
+        stats.ttProbe(ttHit);
+        // Not at the root, which has to come back with a full move to play; only the score matters anywhere else.
+        if (ttHit && ttDepth >= depth && !excluding && ply > 0) {
+            if (ttFlag == 0) return new ScoredMove(-1, ttValue);
+            if (ttFlag == 1) alpha = Math.max(alpha, ttValue);
+            if (ttFlag == 2) beta  = Math.min(beta, ttValue);
+            if (alpha >= beta) {
+                stats.ttCutoff();
+                return new ScoredMove(-1, ttValue);
+            }
+        }
+
+        // Pseudo-legal moves are fine inside the tree, but the move we actually play has to be legal.
+        // The move generator only needs the other side's attacks for castling; the parent's check test has usually got them already.
+        int[] moves;
+        if (ply == 0) moves = BitboardBoard.getLegalMoves(state, maxPlayer);
+        else if ((state[15] & (maxPlayer ? 6L : 24L)) == 0L) moves = BitboardBoard.getAllMoves(state, maxPlayer, 0L);
+        else moves = BitboardBoard.getAllMoves(state, maxPlayer, attackMaps.threats(ply, state, !maxPlayer));
+        if (moves.length == 0) {
+            int mateScore = maxPlayer ? -(ChessAI.MATE_SCORE - ply) : +(ChessAI.MATE_SCORE - ply); // Counted from the root, like the tablebase scores.
+            return new ScoredMove(-1, mateScore);
+        }
+
+        // Singular extension: if the TT move beats every other move here by a clear margin, it's the only move,
+        // and the line after it deserves an extra ply. To find out, search everything else at reduced depth
+        // with a null window just below the TT score (just above it, for black).
+        int singularMove = -1;
+        if (ply > 0 && excludedMove == -1 && depth >= SINGULAR_MIN_DEPTH && extensions < maxExtensions
+                && ttHit && ttMove != -1 && ttDepth >= depth - 3 && Math.abs(ttValue) < ChessAI.MATE_BOUND
+                && (ttFlag == 0 || ttFlag == (maxPlayer ? 1 : 2))) {
+            int bound = maxPlayer ? ttValue - SINGULAR_MARGIN * depth : ttValue + SINGULAR_MARGIN * depth;
+            ScoredMove verification = maxPlayer
+                    ? minimax(state, (depth - 1) / 2, bound - 1, bound, true, ply, halfmoveClock, extensions, ttMove)
+                    : minimax(state, (depth - 1) / 2, bound, bound + 1, false, ply, halfmoveClock, extensions, ttMove);
+            if (verification == null) return null;
+            if (maxPlayer ? verification.score < bound : verification.score > bound) singularMove = ttMove;
+        }
+
+        int originalAlpha = alpha, originalBeta = beta; // The window we were given, for the TT flag below.
+        int bestScore = maxPlayer ? -ChessAI.INFINITY : ChessAI.INFINITY;
+        int bestMove  = -1;
+
+        for (int i = 0; i < moves.length; i++) {
+            int m = moves[i];
+            int compact = BitboardBoard.toCompactMove(m);
+            if (compact == excludedMove || (excludingRoot && isExcludedRootMove(m))) continue;
+
+            ScoredMove child = searchMove(state, m, depth, alpha, beta, maxPlayer, ply, halfmoveClock, extensions, singularMove);
+            if (child == null) return null;  // timeout
+
+            int score = child.score;
+            if (maxPlayer ? (score > bestScore) : (score < bestScore)) {
+                bestScore = score;
+                bestMove  = m;
+            }
+            if (maxPlayer) alpha = Math.max(alpha, score);
+            else          beta  = Math.min(beta, score);
+            if (alpha >= beta) {
+                stats.betaCutoff(i == 0);
+                break;
+            }
+
+            // The eldest brother didn't give a cutoff, so the parallel search can have the young ones.
+            if (i == 0 && !excluding && moves.length > 1) {
+                ScoredMove rest = split(state, moves, 1, depth, alpha, beta, maxPlayer, ply, halfmoveClock, extensions, singularMove, bestScore, bestMove);
+                if (rest == null) return null;
+                if (rest != NOT_SPLIT) {
+                    bestScore = rest.score;
+                    bestMove  = rest.move;
+                    break;
+                }
+            }
+        }
+
+        if (excluding) return new ScoredMove(bestMove, bestScore);
+
+        // store into TT
+        int flag = bestScore <= originalAlpha ? 2 : bestScore >= originalBeta ? 1 : 0;
+        transpositionTable.store(currentHash, depth, toTTScore(bestScore, ply), flag, bestMove == -1 ? -1 : BitboardBoard.toCompactMove(bestMove));
+
+        return new ScoredMove(bestMove, bestScore);
+    }
+
+    // Makes the move, searches the position after it and takes the move back. state is the position at this ply, and is
+    // as it was afterwards. The child's result, or null if the search was stopped.
+    ScoredMove searchMove(long[] state, int m, int depth, int alpha, int beta, boolean maxPlayer, int ply, int halfmoveClock,
+                          int extensions, int singularMove) {
+        int compact = BitboardBoard.toCompactMove(m);
+        // make the move; either on a fresh copy of the board (copy-make), or on this one,
+        // with the undo stack keeping the hash and whatever else the move can't give back
+        evaluator.makeMove(state, m);
+        long parentHash = currentHash;
+        long[] childState = state;
+        if (copyMake) childState = positionStack.push(state, compact);
+        else BitboardBoard.makeMove(state, compact, currentHash, undoStack);
+        currentHash = ChessAI.computeZobrist(childState);
+        attackMaps.invalidate(ply + 1);
+
+        // Forcing lines get an extra ply, so they don't fall off the horizon at the same depth as the quiet ones:
+        // the singular move, and any move that gives check. Only up to MAX_EXTENSIONS per path, or a perpetual would never end.
+        int extension = 0;
+        if (extensions < maxExtensions && (compact == singularMove || attackMaps.inCheck(ply + 1, childState, !maxPlayer))) extension = 1;
+
+        // search the child
+        boolean irreversible = BitboardBoard.getPiece(m) == 1 || BitboardBoard.getCaptured(m) != 0;
+        ScoredMove child = minimax(
+                childState, depth-1 + extension, alpha, beta,
+                !maxPlayer,
+                ply + 1, irreversible ? 0 : halfmoveClock + 1,
+                extensions + extension, -1
+        );
+
+        // undo the move
+        if (copyMake) {
+            positionStack.pop();
+            currentHash = parentHash;
+        } else {
+            currentHash = BitboardBoard.unmakeMove(state, compact, undoStack);
+        }
+        evaluator.undoMove(state, m);
+        return child;
+    }
+
+    private boolean isExcludedRootMove(int move) {
+        for (int i = 0; i < excludedCount; i++) {
+            if (excludedRootMoves[i] == move) return true;
+        }
+        return false;
+    }
+
+    // Has this position been seen before, since the last irreversible move? Only every other ply can be the same side to move.
+    private boolean isRepetition(int ply, int halfmoveClock) {
+        int index = rootIndex + ply;
+        int oldest = Math.max(0, index - halfmoveClock);
+        for (int i = index - 4; i >= oldest; i -= 2) {
+            if (hashStack[i] == currentHash) return true;
+        }
+        return false;
+    }
+
+    // Mate scores count the plies from the root, but the same position turns up at different plies. So the TT keeps them
+    // counted from the position itself instead, and they're turned back into 'from the root' for whichever ply probes them.
+    static int toTTScore(int score, int ply) {
+        if (score > ChessAI.MATE_BOUND) return score + ply;
+        if (score < -ChessAI.MATE_BOUND) return score - ply;
+        return score;
+    }
+
+    static int fromTTScore(int score, int ply) {
+        if (score > ChessAI.MATE_BOUND) return score - ply;
+        if (score < -ChessAI.MATE_BOUND) return score + ply;
+        return score;
+    }
+
+    // Tablebase values are 'mate in n plies' from the side to move's point of view; turn that into a score from white's.
+    // Shorter mates score higher, so the search actually makes progress instead of shuffling between winning positions.
+    static int tablebaseScore(int tb, boolean whiteToMove, int ply) {
+        int score;
+        if (tb > 0)      score = ChessAI.MATE_SCORE - ply - tb;
+        else if (tb < 0) score = -(ChessAI.MATE_SCORE - ply - (-tb - 1));
+        else             score = 0;
+        return whiteToMove ? score : -score;
+    }
+}
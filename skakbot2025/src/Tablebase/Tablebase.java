@@ -0,0 +1,265 @@
+package Tablebase;
+
+import Board.BitboardBoard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class Tablebase {
+
+    // One endgame table, e.g. KRK, memory-mapped from disk.
+    // The file is a 32-byte header followed by one byte for every possible placement of the pieces, for both sides to move.
+    // The index of a position is: sideToMove * 64^n + square(piece 0) * 64^(n-1) + ... + square(piece n-1),
+    // where 'sideToMove' is 0 for white and 1 for black, and the pieces are listed in the order of the 'slots' array.
+    // That's 2 * 64^4 = 32 MB for a 4-man table, which is perfectly fine to map, and probing is a single multiply-add chain and a byte read.
+
+    // Header layout (all big-endian ints):
+    // 0: magic "SKTB"
+    // 4: format version
+    // 8: number of pieces
+    // 12: longest win/loss in the table, in plies
+    // 16-23: the bitboard index of each piece, one byte each, unused bytes are 0
+    public static final int HEADER_SIZE = 32;
+    static final int MAGIC = 0x534B5442;
+    static final int VERSION = 1;
+    public static final String FILE_EXTENSION = ".sktb";
+
+    // Values are from the point of view of the side to move:
+    // 0 = draw.
+    // +d (1 to 126) = side to move wins, mate in d plies.
+    // -(d + 1) = side to move loses, mated in d plies. So -1 is 'already checkmated'.
+    // -128 = illegal position (side not to move is in check, pieces on top of each other, etc.).
+    public static final byte ILLEGAL = (byte) -128;
+    public static final int MAX_PLIES = 126;
+
+    // Relative piece values, only used to decide which colour is the 'stronger' side that the table is stored for.
+    private static final int[] ORIENTATION_VALUES = {1, 3, 3, 5, 9, 0}; // Pawn, knight, bishop, rook, queen, king.
+
+    private final int[] slots;
+    private final long materialKey;
+    private final int maxPlies;
+    private final ByteBuffer data;
+
+    Tablebase(int[] slots, int maxPlies, ByteBuffer data) {
+        this.slots = slots;
+        this.materialKey = materialKey(slots);
+        this.maxPlies = maxPlies;
+        this.data = data;
+    }
+
+    public static Tablebase open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a tablebase file (or the wrong version): " + path);
+            }
+            int pieces = buffer.getInt(8);
+            int maxPlies = buffer.getInt(12);
+            int[] slots = new int[pieces];
+            for (int i = 0; i < pieces; i++) {
+                slots[i] = buffer.get(16 + i);
+            }
+            if (channel.size() != HEADER_SIZE + tableSize(pieces)) {
+                throw new IOException("Tablebase file has the wrong size: " + path);
+            }
+            return new Tablebase(slots, maxPlies, buffer);
+        }
+    }
+
+    // Reads the raw value of a position. The board must have exactly this table's material, in this table's colour orientation.
+    public byte probe(long[] board) {
+        return data.get(HEADER_SIZE + index(board, slots));
+    }
+
+    public long getMaterialKey() {
+        return materialKey;
+    }
+
+    public int getMaxPlies() {
+        return maxPlies;
+    }
+
+    public int getPieceCount() {
+        return slots.length;
+    }
+
+    public String getName() {
+        return name(slots);
+    }
+
+    // ###########################################################################
+    // VALUE ENCODING.
+
+    public static byte win(int plies) {
+        return (byte) plies;
+    }
+
+    public static byte loss(int plies) {
+        return (byte) -(plies + 1);
+    }
+
+    public static boolean isWin(byte value) {
+        return value > 0;
+    }
+
+    public static boolean isLoss(byte value) {
+        return value < 0 && value != ILLEGAL;
+    }
+
+    // Number of plies until mate, for either a win or a loss.
+    public static int plies(byte value) {
+        return value > 0 ? value : -value - 1;
+    }
+
+    // ###########################################################################
+    // INDEXING.
+
+    public static int tableSize(int pieces) {
+        return 2 << (6 * pieces);
+    }
+
+    // Squares of pieces of the same type are taken lowest first, so every position has exactly one index.
+    static int index(long[] board, int[] slots) {
+        int index = BitboardBoard.isWhiteToMove(board[15]) ? 0 : 1;
+        long remaining = 0L;
+        int previous = -1;
+        for (int slot : slots) {
+            if (slot != previous) {
+                remaining = board[slot];
+                previous = slot;
+            }
+            index = (index << 6) | Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+        }
+        return index;
+    }
+
+    // The reverse of index(). Returns false for placements that can't be a real position,
+    // or that are just a duplicate of another index (two identical pieces listed in the 'wrong' order).
+    static boolean decode(int index, int[] slots, long[] board) {
+        Arrays.fill(board, 0L);
+        int previousSlot = -1, previousSquare = 64;
+        for (int i = slots.length - 1; i >= 0; i--) {
+            int square = index & 63;
+            index >>>= 6;
+            long bit = 1L << square;
+            int slot = slots[i];
+
+            if ((board[0] & bit) != 0L) return false;
+            if ((slot == 3 || slot == 9) && (square < 8 || square >= 56)) return false; // Pawns can't be on the back ranks.
+            if (slot == previousSlot && square >= previousSquare) return false;
+
+            board[0] |= bit;
+            board[slot < 9 ? 1 : 2] |= bit;
+            board[slot] |= bit;
+            previousSlot = slot;
+            previousSquare = square;
+        }
+        board[15] = BitboardBoard.encodeMiscData(index == 0, new boolean[4], -1);
+        BitboardBoard.rebuildMailbox(board);
+        return true;
+    }
+
+    // ###########################################################################
+    // MATERIAL KEYS AND COLOUR ORIENTATION.
+
+    // Three bits per piece type: white pawns in bits 0-2, white knights in 3-5, ..., black kings in 33-35.
+    public static long materialKey(long[] board) {
+        long key = 0L;
+        for (int i = 3; i < 15; i++) {
+            key |= (long) Long.bitCount(board[i]) << (3 * (i - 3));
+        }
+        return key;
+    }
+
+    static long materialKey(int[] slots) {
+        long key = 0L;
+        for (int slot : slots) {
+            key += 1L << (3 * (slot - 3));
+        }
+        return key;
+    }
+
+    public static long flipMaterialKey(long key) {
+        return (key >>> 18) | ((key & 0x3FFFFL) << 18);
+    }
+
+    // A table is only stored for one colour orientation: the side with more material plays white.
+    // The other orientation is probed by flipping the position first.
+    public static boolean isCanonical(long key) {
+        int whiteValue = 0, blackValue = 0;
+        for (int type = 0; type < 6; type++) {
+            whiteValue += (int) ((key >>> (3 * type)) & 7) * ORIENTATION_VALUES[type];
+            blackValue += (int) ((key >>> (3 * (type + 6))) & 7) * ORIENTATION_VALUES[type];
+        }
+        if (whiteValue != blackValue) return whiteValue > blackValue;
+        return (key & 0x3FFFFL) >= (key >>> 18);
+    }
+
+    // Swaps the colours and mirrors the board top to bottom, so white becomes black and vice versa.
+    // Castling rights and en passant aren't carried over; tables don't know about either.
+    public static void flipColours(long[] src, long[] dst) {
+        dst[0] = Long.reverseBytes(src[0]); // Reversing the bytes of a bitboard mirrors the ranks.
+        dst[1] = Long.reverseBytes(src[2]);
+        dst[2] = Long.reverseBytes(src[1]);
+        for (int i = 3; i < 9; i++) {
+            dst[i] = Long.reverseBytes(src[i + 6]);
+            dst[i + 6] = Long.reverseBytes(src[i]);
+        }
+        dst[15] = BitboardBoard.setWhiteToMove(0L, !BitboardBoard.isWhiteToMove(src[15])); // No castling, no en passant.
+    }
+
+    // ###########################################################################
+    // NAMES.
+
+    // Parses names like "KRK" or "KQKR" into the list of bitboard indices, white first, each side ordered K, Q, R, B, N, P.
+    public static int[] parseName(String name) {
+        String upper = name.toUpperCase();
+        int split = upper.indexOf('K', 1);
+        if (!upper.startsWith("K") || split < 0) {
+            throw new IllegalArgumentException("Tablebase names look like KRK or KQKR, got: " + name);
+        }
+        int[] slots = new int[upper.length()];
+        for (int i = 0; i < upper.length(); i++) {
+            int type = switch (upper.charAt(i)) {
+                case 'P' -> 1;
+                case 'N' -> 2;
+                case 'B' -> 3;
+                case 'R' -> 4;
+                case 'Q' -> 5;
+                case 'K' -> 6;
+                default -> throw new IllegalArgumentException("Unknown piece in tablebase name: " + name);
+            };
+            slots[i] = i < split ? type + 2 : type + 8;
+        }
+        return slotsForKey(materialKey(slots));
+    }
+
+    static int[] slotsForKey(long key) {
+        int count = 0;
+        for (int i = 0; i < 12; i++) count += (int) ((key >>> (3 * i)) & 7);
+        int[] slots = new int[count];
+        int n = 0;
+        // White from king down to pawn, then black from king down to pawn.
+        for (int side = 0; side < 2; side++) {
+            for (int slot = (side == 0 ? 8 : 14); slot >= (side == 0 ? 3 : 9); slot--) {
+                int pieces = (int) ((key >>> (3 * (slot - 3))) & 7);
+                for (int j = 0; j < pieces; j++) slots[n++] = slot;
+            }
+        }
+        return slots;
+    }
+
+    static String name(int[] slots) {
+        StringBuilder sb = new StringBuilder();
+        for (int slot : slots) {
+            sb.append(" PNBRQK".charAt(slot < 9 ? slot - 2 : slot - 8));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,248 @@
+package Tablebase;
+
+import Board.BitboardBoard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+public class TablebaseGenerator {
+
+    // Builds endgame tables by retrograde analysis, one ply at a time:
+    // - First, every checkmate is marked as 'lost in 0'.
+    // - On odd passes p, any unresolved position with a move into a position 'lost in p-1' is 'won in p'.
+    // - On even passes p, any unresolved position where *every* move leads to a win for the opponent, the longest being p-1, is 'lost in p'.
+    // - Whatever is still unresolved when nothing changes any more is a draw.
+    // Captures and promotions leave the table, so those moves are looked up in the smaller tables, which get generated first.
+    // Moves come straight from BitboardBoard, so the tables agree with the move generator the search uses.
+
+    // Each pass is split across all cores with a parallel stream. That's safe without locks because a pass only ever
+    // *writes* the value for that exact ply, and only ever *reads* values from earlier plies.
+
+    // Note: en passant is ignored, like most tablebases do; the odd position where it matters is off by a move.
+
+    private final Path directory;
+    private final TablebaseIndex finished = new TablebaseIndex();
+
+    private static final ThreadLocal<long[][]> SCRATCH = ThreadLocal.withInitial(() -> new long[2][BitboardBoard.BOARD_SIZE]);
+
+    public TablebaseGenerator(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    public Tablebase generate(String name) throws IOException {
+        int[] slots = Tablebase.parseName(name);
+        long key = Tablebase.materialKey(slots);
+        if (!Tablebase.isCanonical(key)) {
+            slots = Tablebase.slotsForKey(Tablebase.flipMaterialKey(key));
+        }
+        return generate(slots);
+    }
+
+    private Tablebase generate(int[] slots) throws IOException {
+        long key = Tablebase.materialKey(slots);
+        Tablebase existing = finished.get(key);
+        if (existing != null) return existing;
+
+        Path file = directory.resolve(Tablebase.name(slots) + Tablebase.FILE_EXTENSION);
+        if (Files.exists(file)) {
+            Tablebase table = Tablebase.open(file);
+            finished.register(table);
+            return table;
+        }
+
+        // Smaller tables first, since captures and promotions lead into them.
+        int maxChildPlies = 0;
+        for (long childKey : childKeys(key)) {
+            if (!Tablebase.isCanonical(childKey)) childKey = Tablebase.flipMaterialKey(childKey);
+            int[] childSlots = Tablebase.slotsForKey(childKey);
+            if (childSlots.length <= 2) continue; // Bare kings.
+            maxChildPlies = Math.max(maxChildPlies, generate(childSlots).getMaxPlies());
+        }
+
+        String name = Tablebase.name(slots);
+        System.out.println("Generating " + name + " on " + Runtime.getRuntime().availableProcessors() + " cores...");
+        long start = System.nanoTime();
+
+        byte[] values = solve(slots, maxChildPlies);
+        int maxPlies = 0;
+        for (byte v : values) {
+            if (v != Tablebase.ILLEGAL) maxPlies = Math.max(maxPlies, Tablebase.plies(v));
+        }
+
+        write(file, slots, maxPlies, values);
+        System.out.println(name + " done in " + (System.nanoTime() - start) / 1_000_000 + " ms, longest mate " + maxPlies + " plies");
+
+        Tablebase table = Tablebase.open(file);
+        finished.register(table);
+        return table;
+    }
+
+    private byte[] solve(int[] slots, int maxChildPlies) {
+        int size = Tablebase.tableSize(slots.length);
+        long ownKey = Tablebase.materialKey(slots);
+        byte[] values = new byte[size];
+
+        // Pass 0: illegal positions and checkmates.
+        IntStream.range(0, size).parallel().forEach(i -> {
+            long[] board = SCRATCH.get()[0];
+            if (!Tablebase.decode(i, slots, board)) {
+                values[i] = Tablebase.ILLEGAL;
+                return;
+            }
+            boolean white = BitboardBoard.isWhiteToMove(board[15]);
+            if (BitboardBoard.isInCheck(board, !white)) {
+                values[i] = Tablebase.ILLEGAL; // The side that just moved can't be in check.
+                return;
+            }
+            if (BitboardBoard.getLegalMoves(board, white).length == 0 && BitboardBoard.isInCheck(board, white)) {
+                values[i] = Tablebase.loss(0);
+            }
+        });
+
+        int quietPasses = 0;
+        for (int ply = 1; ply <= Tablebase.MAX_PLIES; ply++) {
+            final int p = ply;
+            LongAdder changed = new LongAdder();
+
+            IntStream.range(0, size).parallel().forEach(i -> {
+                if (values[i] != 0) return;
+                long[][] scratch = SCRATCH.get();
+                long[] board = scratch[0];
+                Tablebase.decode(i, slots, board);
+                boolean white = BitboardBoard.isWhiteToMove(board[15]);
+                int[] moves = BitboardBoard.getLegalMoves(board, white);
+                if (moves.length == 0) return; // Stalemate.
+
+                if ((p & 1) == 1) {
+                    // Winning pass: one move into a lost position is enough.
+                    byte target = Tablebase.loss(p - 1);
+                    for (int move : moves) {
+                        BitboardBoard.makeOrUndoMove(board, move);
+                        int child = childValue(board, ownKey, slots, values, scratch[1]);
+                        BitboardBoard.makeOrUndoMove(board, move);
+                        if (child == target) {
+                            values[i] = Tablebase.win(p);
+                            changed.increment();
+                            return;
+                        }
+                    }
+                } else {
+                    // Losing pass: every move has to lose, and the longest resistance decides the distance.
+                    int longest = 0;
+                    for (int move : moves) {
+                        BitboardBoard.makeOrUndoMove(board, move);
+                        int child = childValue(board, ownKey, slots, values, scratch[1]);
+                        BitboardBoard.makeOrUndoMove(board, move);
+                        if (child <= 0) return;
+                        longest = Math.max(longest, child);
+                    }
+                    if (longest == p - 1) {
+                        values[i] = Tablebase.loss(p);
+                        changed.increment();
+                    }
+                }
+            });
+
+            System.out.println("  ply " + p + ": " + changed.sum() + " positions resolved");
+
+            // Two empty passes in a row, with nothing left to come from the smaller tables, means we're done.
+            quietPasses = changed.sum() == 0 ? quietPasses + 1 : 0;
+            if (quietPasses >= 2 && p > maxChildPlies + 1) break;
+        }
+
+        return values;
+    }
+
+    private int childValue(long[] board, long ownKey, int[] slots, byte[] values, long[] scratch) {
+        long key = Tablebase.materialKey(board);
+        if (key == ownKey) return values[Tablebase.index(board, slots)];
+        int value = Tablebases.probe(finished, board, scratch);
+        return value == Tablebases.NOT_FOUND ? 0 : value;
+    }
+
+    // Every material combination reachable in one move: any non-king piece captured, or any pawn promoted.
+    private static Set<Long> childKeys(long key) {
+        Set<Long> children = new LinkedHashSet<>();
+        for (int slot = 3; slot < 15; slot++) {
+            if (slot == 8 || slot == 14) continue;
+            int shift = 3 * (slot - 3);
+            if (((key >>> shift) & 7) == 0) continue;
+            children.add(key - (1L << shift));
+            if (slot == 3 || slot == 9) {
+                for (int promotion = slot + 1; promotion <= slot + 4; promotion++) {
+                    children.add(key - (1L << shift) + (1L << (3 * (promotion - 3))));
+                }
+            }
+        }
+        return children;
+    }
+
+    private static void write(Path file, int[] slots, int maxPlies, byte[] values) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Tablebase.HEADER_SIZE);
+        header.putInt(Tablebase.MAGIC);
+        header.putInt(Tablebase.VERSION);
+        header.putInt(slots.length);
+        header.putInt(maxPlies);
+        for (int slot : slots) header.put((byte) slot);
+        header.clear();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(header);
+            ByteBuffer body = ByteBuffer.wrap(values);
+            while (body.hasRemaining()) channel.write(body);
+        }
+        Files.move(temp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Every canonical table with the given number of pieces, kings included.
+    static List<String> allNames(int pieces) {
+        String types = "QRBNP";
+        Set<String> names = new LinkedHashSet<>();
+        List<String> combos = new ArrayList<>();
+        combos.add("");
+        for (int i = 0; i < pieces - 2; i++) {
+            List<String> next = new ArrayList<>();
+            for (String c : combos) for (char t : types.toCharArray()) next.add(c + t);
+            combos = next;
+        }
+        for (String combo : combos) {
+            for (int split = 0; split <= combo.length(); split++) {
+                int[] slots = Tablebase.parseName("K" + combo.substring(0, split) + "K" + combo.substring(split));
+                long key = Tablebase.materialKey(slots);
+                if (!Tablebase.isCanonical(key)) key = Tablebase.flipMaterialKey(key);
+                names.add(Tablebase.name(Tablebase.slotsForKey(key)));
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    // Usage: TablebaseGenerator <output directory> [3 | 4 | KRK KQKR ...]
+    // '3' or '4' generates every table with that many pieces; otherwise the named tables (and whatever they depend on).
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: TablebaseGenerator <output directory> [3 | 4 | KRK KQKR ...]");
+            return;
+        }
+        TablebaseGenerator generator = new TablebaseGenerator(Path.of(args[0]));
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("3") || args[i].equals("4")) names.addAll(allNames(Integer.parseInt(args[i])));
+            else names.add(args[i]);
+        }
+        for (String name : names) {
+            generator.generate(name);
+        }
+    }
+}
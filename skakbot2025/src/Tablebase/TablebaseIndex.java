@@ -0,0 +1,48 @@
+package Tablebase;
+
+import java.util.Arrays;
+
+class TablebaseIndex {
+
+    // Tables by material key, for the probe the search makes at every node with few enough pieces left.
+    // A HashMap<Long, Tablebase> would box the key on every one of those; this is a sorted long[] and a binary search instead.
+    // There are only ever a few dozen tables, so adding one just copies the arrays.
+
+    private long[] keys = new long[0];
+    private Tablebase[] tables = new Tablebase[0];
+
+    // Registers the table under its own key and the colour-flipped key, so a single lookup finds it either way round.
+    void register(Tablebase table) {
+        put(table.getMaterialKey(), table);
+        put(Tablebase.flipMaterialKey(table.getMaterialKey()), table);
+    }
+
+    private void put(long key, Tablebase table) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i >= 0) {
+            tables[i] = table;
+            return;
+        }
+        int at = -i - 1;
+        long[] newKeys = new long[keys.length + 1];
+        Tablebase[] newTables = new Tablebase[tables.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, at);
+        System.arraycopy(tables, 0, newTables, 0, at);
+        newKeys[at] = key;
+        newTables[at] = table;
+        System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+        System.arraycopy(tables, at, newTables, at + 1, tables.length - at);
+        keys = newKeys;
+        tables = newTables;
+    }
+
+    // The table for this material key, or null.
+    Tablebase get(long key) {
+        int i = Arrays.binarySearch(keys, key);
+        return i >= 0 ? tables[i] : null;
+    }
+
+    boolean isEmpty() {
+        return keys.length == 0;
+    }
+}
@@ -0,0 +1,69 @@
+package Tablebase;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class Tablebases {
+
+    // All tables found on disk, keyed by material key (see TablebaseIndex).
+    // The directory can be set with -Dskakbot.tablebases=..., and defaults to 'tablebases' in the working directory.
+
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private static final TablebaseIndex tables = new TablebaseIndex();
+    private static int maxPieces = 0;
+    private static boolean loaded = false;
+
+    public static synchronized void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+
+        Path directory = Path.of(System.getProperty("skakbot.tablebases", "tablebases"));
+        if (!Files.isDirectory(directory)) return;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + Tablebase.FILE_EXTENSION)) {
+            for (Path file : files) {
+                Tablebase table = Tablebase.open(file);
+                tables.register(table);
+                maxPieces = Math.max(maxPieces, table.getPieceCount());
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't load tablebases: " + e.getMessage());
+        }
+        if (!tables.isEmpty()) System.out.println("Tablebases loaded for up to " + maxPieces + " pieces");
+    }
+
+    // 0 if no tables are loaded, so 'pieceCount <= maxPieces()' is a cheap way to skip probing altogether.
+    public static int maxPieces() {
+        return maxPieces;
+    }
+
+    // Returns the raw table value (see Tablebase) from the point of view of the side to move, or NOT_FOUND.
+    // Castling rights aren't covered by the tables, so positions that still have them are never found.
+    // scratch is somewhere to put the colour-flipped board (BitboardBoard.BOARD_SIZE longs); the search keeps one, so probing never allocates.
+    public static int probe(long[] board, long[] scratch) {
+        if ((board[15] & 0x1EL) != 0L) return NOT_FOUND;
+        return probe(tables, board, scratch);
+    }
+
+    static int probe(TablebaseIndex index, long[] board, long[] scratch) {
+        long key = Tablebase.materialKey(board);
+
+        // Bare kings can't be anything but a draw, and there's no table for it.
+        if ((key & ~((7L << 15) | (7L << 33))) == 0L) return 0;
+
+        Tablebase table = index.get(key);
+        if (table == null) return NOT_FOUND;
+
+        byte value;
+        if (table.getMaterialKey() == key) {
+            value = table.probe(board);
+        } else {
+            Tablebase.flipColours(board, scratch);
+            value = table.probe(scratch);
+        }
+        return value == Tablebase.ILLEGAL ? NOT_FOUND : value;
+    }
+}
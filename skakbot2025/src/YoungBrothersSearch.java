@@ -0,0 +1,309 @@
+import Board.BitboardBoard;
+import Evaluation.Evaluator;
+import Search.SearchStatistics;
+import Search.TimeManager;
+import Search.TranspositionTable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+class YoungBrothersSearch {
+
+    // Parallel alpha-beta with the Young Brothers Wait Concept, used by ChessAI when -Dskakbot.threads is above 1.
+    // At every node the first move (the eldest brother) is searched on its own. Only if that doesn't give a cutoff are
+    // the remaining moves (the young brothers) handed to the ForkJoinPool, where idle threads steal them.
+    // When one of them does give a cutoff, the rest of them are told to give up.
+    //
+    // The nodes are ChessAI's own (Searcher.minimax), extensions and all; this class only decides where to split and who searches what.
+    // Every task borrows a Helper, a Searcher with its own stacks, board and evaluator, and copies the position and the hash path
+    // it starts from into it. So the only things shared between threads are ChessAI's TT (lockless) and the abort flags.
+    // Same minimax as ChessAI, just without the aspiration windows.
+
+    private static final int MIN_SPLIT_DEPTH = 3; // Below this, handing a brother to another thread costs more than it gains.
+    private static final int NODES_BETWEEN_CHECKS = 1024; // Per task, like TimeManager's checks.
+
+    private final ForkJoinPool pool;
+    private final Evaluator prototype;
+    private final TranspositionTable transpositionTable;
+    // A task can't share a Helper with anyone, not even with a task its own thread picks up while it waits in invokeAll().
+    // So they're borrowed from here, and new ones only made when every one of them is busy.
+    private final ConcurrentLinkedQueue<Helper> spareHelpers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Helper> allHelpers = new ConcurrentLinkedQueue<>(); // For adding up their statistics.
+    // All the helpers' nodes in this search, for the node limit. TimeManager's counter isn't thread-safe, so they add to this
+    // instead, a batch at a time; the search can go over the limit by up to a batch per thread.
+    private final LongAdder searchNodes = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder abortedBrothers = new LongAdder();
+
+    // Set as soon as any task notices the time is up or the search was stopped; everyone else sees it on their next node.
+    private volatile boolean stopped;
+    private TimeManager timeManager;
+    private AtomicBoolean stopFlag;
+    private int iterationDepth;
+    private int lastDepth;
+
+    YoungBrothersSearch(int threads, Evaluator evaluator, TranspositionTable transpositionTable) {
+        this.pool = new ForkJoinPool(threads);
+        this.prototype = evaluator;
+        this.transpositionTable = transpositionTable;
+    }
+
+    // main is ChessAI's Searcher, with the search already started on root (the game history and all); the helpers start from it.
+    int search(Searcher main, long[] root, boolean isWhite, int halfmoveClock,
+               TimeManager timeManager, AtomicBoolean stopFlag, SearchStatistics stats) {
+        this.timeManager = timeManager;
+        this.stopFlag = stopFlag;
+        stopped = false;
+        searchNodes.reset();
+        lastDepth = 0;
+
+        int bestMove = -1, lastScore = 0;
+        for (int depth = 1; depth <= Math.min(ChessAI.MAX_DEPTH, timeManager.getDepthLimit()); depth++) {
+            if (depth > 1 && (!timeManager.canStartIteration() || searchNodes.sum() >= timeManager.getNodeLimit())) break;
+
+            // Nothing's running between iterations, so the helpers' statistics are ours to reset and read.
+            stats.startIteration(depth);
+            iterationDepth = depth;
+            for (Helper helper : allHelpers) helper.startIteration(depth);
+            Searcher.ScoredMove result = pool.invoke(new RootTask(main, root, halfmoveClock, depth, isWhite));
+            for (Helper helper : allHelpers) stats.add(helper.stats);
+            if (result == null) {
+                stats.finishIteration(false, lastScore, bestMove);
+                break;
+            }
+            stats.finishIteration(true, result.score, result.move);
+
+            bestMove = result.move;
+            lastScore = result.score;
+            lastDepth = depth;
+            timeManager.iterationFinished(bestMove, isWhite ? lastScore : -lastScore);
+        }
+        return bestMove;
+    }
+
+    // Lets the pool's threads go. Only once no search is running any more; ChessAI.shutdown() does it on its worker thread.
+    void close() {
+        pool.shutdownNow();
+    }
+
+    int getLastDepth() {
+        return lastDepth;
+    }
+
+    long getSplits() {
+        return splits.sum();
+    }
+
+    long getAbortedBrothers() {
+        return abortedBrothers.sum();
+    }
+
+    // ###########################################################################
+    // HELPERS.
+
+    // Everything one task searches with. Nobody else ever touches it while the task is running.
+    private final class Helper extends Searcher {
+        final long[] board = new long[BitboardBoard.BOARD_SIZE];
+        SplitPoint splitPoint; // The split the task belongs to, or null for the root.
+        int nodesUntilCheck = NODES_BETWEEN_CHECKS;
+
+        Helper() {
+            super(prototype.copy(), transpositionTable, new SearchStatistics());
+        }
+
+        // Takes over from another searcher at this ply of its path, with a copy of its position there.
+        void enter(Searcher from, long[] state, int ply, SplitPoint splitPoint) {
+            System.arraycopy(state, 0, board, 0, BitboardBoard.BOARD_SIZE);
+            enter(from, board, ply);
+            this.splitPoint = splitPoint;
+        }
+
+        @Override
+        protected boolean shouldStop() {
+            if (stopped) return true;
+            if (--nodesUntilCheck <= 0) {
+                countNodes();
+                if (timeUp()) return true;
+            }
+            return splitPoint != null && splitPoint.aborted();
+        }
+
+        // Adds the nodes since the last batch to searchNodes. At every check, and when a task is done with the helper.
+        void countNodes() {
+            searchNodes.add(NODES_BETWEEN_CHECKS - nodesUntilCheck);
+            nodesUntilCheck = NODES_BETWEEN_CHECKS;
+        }
+
+        @Override
+        protected Searcher.ScoredMove split(long[] state, int[] moves, int from, int depth, int alpha, int beta, boolean maxPlayer, int ply,
+                                            int halfmoveClock, int extensions, int singularMove, int bestScore, int bestMove) {
+            if (depth < MIN_SPLIT_DEPTH) return NOT_SPLIT;
+
+            SplitPoint sp = new SplitPoint(splitPoint, maxPlayer, alpha, beta, bestScore, bestMove);
+            Brother[] brothers = new Brother[moves.length - from];
+            for (int i = from; i < moves.length; i++) {
+                brothers[i - from] = new Brother(this, state, sp, moves[i], depth, ply, halfmoveClock, extensions, singularMove);
+            }
+            splits.increment();
+            ForkJoinTask.invokeAll(brothers);
+
+            // Brothers that gave up because one of them got the cutoff are fine. Giving up for any other reason
+            // (a cutoff further up, or the time) means some moves were never searched, so we have to give up too.
+            if (sp.cutoff) {
+                stats.betaCutoff(false);
+            } else {
+                for (Brother b : brothers) {
+                    if (!b.finished) return null;
+                }
+            }
+            return sp.best();
+        }
+    }
+
+    private Helper borrowHelper() {
+        Helper helper = spareHelpers.poll();
+        if (helper == null) {
+            helper = new Helper();
+            helper.startIteration(iterationDepth);
+            allHelpers.add(helper);
+        }
+        return helper;
+    }
+
+    // A node whose young brothers are being searched in parallel. The window narrows as the brothers finish,
+    // and brothers that haven't started yet pick up the narrower one.
+    private static final class SplitPoint {
+        final SplitPoint parent;
+        final boolean maxPlayer;
+        private int alpha, beta, bestScore, bestMove;
+        volatile boolean cutoff;
+
+        SplitPoint(SplitPoint parent, boolean maxPlayer, int alpha, int beta, int bestScore, int bestMove) {
+            this.parent = parent;
+            this.maxPlayer = maxPlayer;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.bestScore = bestScore;
+            this.bestMove = bestMove;
+        }
+
+        // Both bounds in one go, alpha in the high half.
+        synchronized long window() {
+            return ((long) alpha << 32) | (beta & 0xFFFFFFFFL);
+        }
+
+        synchronized void update(int move, int score) {
+            if (maxPlayer ? score > bestScore : score < bestScore) {
+                bestScore = score;
+                bestMove = move;
+            }
+            if (maxPlayer) alpha = Math.max(alpha, score);
+            else           beta  = Math.min(beta, score);
+            if (alpha >= beta) cutoff = true;
+        }
+
+        synchronized Searcher.ScoredMove best() {
+            return new Searcher.ScoredMove(bestMove, bestScore);
+        }
+
+        // A cutoff here or at any split further up means this subtree's result isn't needed any more.
+        boolean aborted() {
+            for (SplitPoint sp = this; sp != null; sp = sp.parent) {
+                if (sp.cutoff) return true;
+            }
+            return false;
+        }
+    }
+
+    // ###########################################################################
+    // TASKS. ForkJoinTasks are Serializable, but these never leave the pool, let alone the JVM; hence the @SuppressWarnings.
+
+    @SuppressWarnings("serial")
+    private final class RootTask extends RecursiveTask<Searcher.ScoredMove> {
+        private final Searcher main;
+        private final long[] root;
+        private final int halfmoveClock, depth;
+        private final boolean isWhite;
+
+        RootTask(Searcher main, long[] root, int halfmoveClock, int depth, boolean isWhite) {
+            this.main = main;
+            this.root = root;
+            this.halfmoveClock = halfmoveClock;
+            this.depth = depth;
+            this.isWhite = isWhite;
+        }
+
+        @Override
+        protected Searcher.ScoredMove compute() {
+            Helper helper = borrowHelper();
+            try {
+                helper.enter(main, root, 0, null);
+                return helper.minimax(helper.board, depth, -ChessAI.INFINITY, ChessAI.INFINITY, isWhite, 0, halfmoveClock, 0, -1);
+            } finally {
+                helper.countNodes();
+                spareHelpers.add(helper);
+            }
+        }
+    }
+
+    // One young brother: a single move at a split point, searched from a copy of the parent's position.
+    @SuppressWarnings("serial")
+    private final class Brother extends RecursiveAction {
+        private final Helper parent;
+        private final long[] parentState;
+        private final SplitPoint splitPoint;
+        private final int move, depth, ply, halfmoveClock, extensions, singularMove;
+        boolean finished;
+
+        Brother(Helper parent, long[] parentState, SplitPoint splitPoint, int move, int depth, int ply, int halfmoveClock,
+                int extensions, int singularMove) {
+            this.parent = parent;
+            this.parentState = parentState;
+            this.splitPoint = splitPoint;
+            this.move = move;
+            this.depth = depth;
+            this.ply = ply;
+            this.halfmoveClock = halfmoveClock;
+            this.extensions = extensions;
+            this.singularMove = singularMove;
+        }
+
+        @Override
+        protected void compute() {
+            // Small brothers can finish well within NODES_BETWEEN_CHECKS nodes, so every one of them looks at the clock once first.
+            if (timeUp() || splitPoint.aborted()) {
+                abortedBrothers.increment();
+                return;
+            }
+            Helper helper = borrowHelper();
+            try {
+                // The parent sits in invokeAll() until every brother is done, so its position and path can't change under us.
+                helper.enter(parent, parentState, ply, splitPoint);
+                long window = splitPoint.window();
+                Searcher.ScoredMove result = helper.searchMove(helper.board, move, depth, (int) (window >> 32), (int) window,
+                        splitPoint.maxPlayer, ply, halfmoveClock, extensions, singularMove);
+                if (result == null) {
+                    abortedBrothers.increment();
+                    return;
+                }
+                splitPoint.update(move, result.score);
+                finished = true;
+            } finally {
+                helper.countNodes();
+                spareHelpers.add(helper);
+            }
+        }
+    }
+
+    // TimeManager's own node counter isn't thread-safe, so the tasks read the clock themselves, and count the nodes in searchNodes.
+    private boolean timeUp() {
+        if (!stopped && (stopFlag.get() || timeManager.elapsedNanos() > timeManager.getHardLimit()
+                || searchNodes.sum() > timeManager.getNodeLimit())) stopped = true;
+        return stopped;
+    }
+}